@@ -0,0 +1,30 @@
+package basic_demo;
+
+/**
+ * An in-memory client for the benchmarks. Frames are taken off the outbound
+ * queue as soon as they are queued, as if written to an infinitely fast
+ * socket, so a benchmark measures the server and not a full queue.
+ */
+class BenchmarkSession extends ChatSession {
+
+    private long received;
+
+    BenchmarkSession() {
+        super(1024, OverflowPolicy.DROP_OLDEST);
+    }
+
+    @Override
+    void frameQueued() {
+        while (outbound().poll() != null) {
+            received++;
+        }
+    }
+
+    long received() {
+        return received;
+    }
+
+    @Override
+    void close() {
+    }
+}
@@ -0,0 +1,60 @@
+package basic_demo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of one chat message from the moment the server gets the line until it
+ * sits in the outbound queue of every member of the room: building and
+ * encoding the frame plus the fan-out itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int recipients;
+
+    // Rooms of more than 1024 members are shared out among this many threads.
+    @Param({"1", "4"})
+    public int fanOutThreads;
+
+    private ChatServer server;
+    private BenchmarkSession sender;
+
+    @Setup
+    public void setUp() {
+        Configurator.setLevel("basic_demo", Level.WARN);
+        server = new ChatServer(new ChatServerConfig(0).setFanOutThreads(fanOutThreads));
+        for (int i = 0; i < recipients; i++) {
+            BenchmarkSession session = new BenchmarkSession();
+            server.lineReceived(session, "user-" + i);
+            if (i == 0) {
+                sender = session;
+            }
+        }
+    }
+
+    @Benchmark
+    public long broadcast() {
+        server.lineReceived(sender, "hello everybody, how is it going?");
+        return sender.received();
+    }
+}
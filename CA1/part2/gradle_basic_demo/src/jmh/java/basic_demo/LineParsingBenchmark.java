@@ -0,0 +1,83 @@
+package basic_demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost per inbound message of turning bytes into strings: the Scanner the
+ * handler used to read lines with, the {@link LineReader} replacing it, and
+ * decoding {@link BinaryCodec} frames.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineParsingBenchmark {
+
+    private static final int MESSAGES = 1000;
+
+    private byte[] lines;
+    private ByteBuffer frames;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            String message = "message number " + i + " from a chatty client";
+            text.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+            binary.write(BinaryCodec.encode(BinaryCodec.TYPE_TEXT, message));
+        }
+        lines = text.toByteArray();
+        frames = ByteBuffer.wrap(binary.toByteArray());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void scanner(Blackhole blackhole) {
+        Scanner in = new Scanner(new ByteArrayInputStream(lines), StandardCharsets.UTF_8);
+        while (in.hasNextLine()) {
+            blackhole.consume(in.nextLine());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void lineReader(Blackhole blackhole) throws IOException {
+        LineReader in = new LineReader(new ByteArrayInputStream(lines), ChatServer.MAX_LINE_LENGTH);
+        String line;
+        while ((line = in.readLine()) != null) {
+            blackhole.consume(line);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void binaryFrames(Blackhole blackhole) throws IOException {
+        ByteBuffer in = frames.duplicate();
+        String text;
+        while ((text = BinaryCodec.decode(in)) != null) {
+            blackhole.consume(text);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package basic_demo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a client taking a screen name and leaving again, once through the
+ * whole protocol and once for the registry alone. Run with -t to see how
+ * registration scales with concurrent clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistrationBenchmark {
+
+    private ChatServer server;
+    private ClientRegistry registry;
+
+    @State(Scope.Thread)
+    public static class Client {
+        String name;
+
+        @Setup
+        public void setUp() {
+            name = "user-" + Thread.currentThread().getId();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        // Every registration logs at INFO, which would be all we measure.
+        Configurator.setLevel("basic_demo", Level.WARN);
+        server = new ChatServer(0);
+        registry = new ClientRegistry();
+    }
+
+    @Benchmark
+    public ChatSession registerAndLeave(Client client) {
+        ChatSession session = new BenchmarkSession();
+        server.connected(session);
+        server.lineReceived(session, client.name);
+        server.disconnected(session);
+        return session;
+    }
+
+    @Benchmark
+    public boolean claimAndRelease(Client client) {
+        ChatSession session = new BenchmarkSession();
+        registry.claim(client.name, session);
+        return registry.release(client.name, session);
+    }
+}
@@ -0,0 +1,129 @@
+package basic_demo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What TLS costs compared with plain text, over loopback against a real
+ * server: connecting up to the first SUBMITNAME, which for TLS includes the
+ * handshake, and a chat message going to the server and back.
+ *
+ * connect reuses one client context, so after the first connection every TLS
+ * handshake is a resumed one; connectFullHandshake uses a fresh context each
+ * time, so every handshake is a full one. Without TLS both are the same plain
+ * connect.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlsBenchmark {
+
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+
+    @Param({"plain", "tls"})
+    public String transport;
+
+    private File keystore;
+    private ChatServer server;
+    private int port;
+    private SSLContext clientContext;
+    private Socket chatter;
+    private BufferedReader chatterIn;
+    private OutputStream chatterOut;
+    private byte[] message;
+
+    @Setup
+    public void setUp() throws Exception {
+        Configurator.setLevel("basic_demo", Level.WARN);
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        ChatServerConfig config = new ChatServerConfig(port);
+        if (transport.equals("tls")) {
+            keystore = new File(Files.createTempDirectory("tls-benchmark").toFile(), "benchmark.p12");
+            TestTls.createKeystore(keystore, PASSWORD);
+            config.setTlsKeystore(keystore).setTlsPassword(new String(PASSWORD));
+            clientContext = TestTls.clientContext(keystore, PASSWORD);
+        }
+        server = new ChatServer(config);
+        if (!server.start()) {
+            throw new IllegalStateException("The server did not start");
+        }
+
+        chatter = open(clientContext);
+        chatterIn = new BufferedReader(new InputStreamReader(chatter.getInputStream(), StandardCharsets.UTF_8));
+        chatterOut = chatter.getOutputStream();
+        chatterIn.readLine();
+        chatterOut.write("bench\n".getBytes(StandardCharsets.UTF_8));
+        if (!chatterIn.readLine().startsWith(Frame.NAMEACCEPTED)) {
+            throw new IllegalStateException("The benchmark client got no name");
+        }
+        message = "hello everybody, how is it going?\n".getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        chatter.close();
+        server.shutdown(5, TimeUnit.SECONDS);
+        if (keystore != null) {
+            keystore.delete();
+            keystore.getParentFile().delete();
+        }
+    }
+
+    @Benchmark
+    public String connect() throws IOException {
+        return connectAndHangUp(clientContext);
+    }
+
+    @Benchmark
+    public String connectFullHandshake() throws IOException {
+        return connectAndHangUp(clientContext != null ? TestTls.clientContext(keystore, PASSWORD) : null);
+    }
+
+    @Benchmark
+    public String roundTrip() throws IOException {
+        chatterOut.write(message);
+        return chatterIn.readLine();
+    }
+
+    private String connectAndHangUp(SSLContext context) throws IOException {
+        try (Socket socket = open(context)) {
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+        }
+    }
+
+    private Socket open(SSLContext context) throws IOException {
+        return context != null
+                ? context.getSocketFactory().createSocket("localhost", port)
+                : new Socket("localhost", port);
+    }
+}
@@ -0,0 +1,129 @@
+package basic_demo;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames of the {@link WireProtocol#BINARY} protocol: a 4 byte big-endian
+ * payload length, a 1 byte frame type and the payload as UTF-8. Unlike text
+ * lines, payloads may contain newlines and finding the end of a frame needs no
+ * scanning.
+ *
+ * Decoding works on the connection's read buffer in place: the payload is
+ * turned into a string straight from the bytes received, without copying them
+ * anywhere first, and a frame that has not fully arrived is left untouched.
+ */
+final class BinaryCodec {
+
+    // Length and type, in front of every payload.
+    static final int HEADER_LENGTH = 5;
+
+    // Frames claiming a longer payload are rejected before anything is buffered.
+    static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+    // Server to client, one per text protocol command.
+    static final byte TYPE_SUBMITNAME = 1;
+    static final byte TYPE_NAMEACCEPTED = 2;
+    static final byte TYPE_MESSAGE = 3;
+    static final byte TYPE_PING = 5;
+    static final byte TYPE_ROSTER = 6;
+    static final byte TYPE_PRESENCE = 7;
+
+    // Client to server: what the user typed, a screen name, a message or a
+    // command, and the PONG answering a PING.
+    static final byte TYPE_TEXT = 4;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Returns the frame type used for a text protocol command.
+     */
+    static byte typeOf(String command) {
+        switch (command) {
+            case Frame.SUBMITNAME:
+                return TYPE_SUBMITNAME;
+            case Frame.NAMEACCEPTED:
+                return TYPE_NAMEACCEPTED;
+            case Frame.MESSAGE:
+                return TYPE_MESSAGE;
+            case Frame.PING:
+                return TYPE_PING;
+            case Frame.ROSTER:
+                return TYPE_ROSTER;
+            case Frame.PRESENCE:
+                return TYPE_PRESENCE;
+            default:
+                throw new IllegalArgumentException("No binary frame type for " + command);
+        }
+    }
+
+    /**
+     * Encodes a frame.
+     *
+     * @throws IllegalArgumentException if the payload is longer than the
+     *         other side accepts
+     */
+    static byte[] encode(byte type, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Frame payload of " + bytes.length + " bytes is too long");
+        }
+        return ByteBuffer.allocate(HEADER_LENGTH + bytes.length)
+                .putInt(bytes.length)
+                .put(type)
+                .put(bytes)
+                .array();
+    }
+
+    /**
+     * Takes the next complete client frame off a buffer in read mode.
+     *
+     * @return the frame's text, or null if the buffer does not hold a complete
+     *         frame yet, in which case the buffer's position is unchanged
+     * @throws ProtocolException if the frame is not a text frame or too long
+     */
+    static String decode(ByteBuffer in) throws ProtocolException {
+        if (in.remaining() < HEADER_LENGTH) {
+            return null;
+        }
+        int start = in.position();
+        int length = in.getInt(start);
+        checkHeader(length, in.get(start + 4));
+        if (in.remaining() < HEADER_LENGTH + length) {
+            return null;
+        }
+        int payload = start + HEADER_LENGTH;
+        String text;
+        if (in.hasArray()) {
+            text = new String(in.array(), in.arrayOffset() + payload, length, StandardCharsets.UTF_8);
+        } else {
+            ByteBuffer slice = in.duplicate();
+            slice.position(payload).limit(payload + length);
+            text = StandardCharsets.UTF_8.decode(slice).toString();
+        }
+        in.position(payload + length);
+        return text;
+    }
+
+    /**
+     * Validates the header of a frame sent by a client.
+     */
+    static void checkHeader(int length, byte type) throws ProtocolException {
+        if (type != TYPE_TEXT) {
+            throw new ProtocolException("Unexpected frame type " + type);
+        }
+        checkLength(length);
+    }
+
+    /**
+     * Validates the payload length of a frame received by either side, before
+     * anything is allocated for it.
+     */
+    static void checkLength(int length) throws ProtocolException {
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+    }
+}
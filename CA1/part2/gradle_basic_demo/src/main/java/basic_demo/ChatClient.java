@@ -2,17 +2,22 @@ package basic_demo;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 import java.awt.BorderLayout;
+import javax.net.ssl.SSLSocketFactory;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 
 /**
  * A simple Swing-based client for the chat server. Graphically it is a frame with a text
@@ -25,16 +30,36 @@ import javax.swing.JTextField;
  * sending the server arbitrary strings to be broadcast to all chatters connected to the
  * server. When the server sends a line beginning with "MESSAGE" then all characters
  * following this string should be displayed in its message area.
+ *
+ * A client created with binary framing switches to length prefixed frames after the
+ * first SUBMITNAME, see {@link WireProtocol}, so messages are not limited to one line.
+ *
+ * A client that sends "/presence" is told who is in its room by ROSTER and PRESENCE
+ * frames instead of join and leave messages; both are shown in the message area as
+ * readable lines.
+ *
+ * Messages reach the message area through a {@link MessageFeed}, in batches on the Swing
+ * event thread, and only the last {@link #SCROLLBACK_LINES} of them are kept.
+ *
+ * A client created with TLS trusts the certificates of the JVM's trust store, so a server
+ * with a self-signed certificate needs -Djavax.net.ssl.trustStore pointing at it.
  */
 public class ChatClient implements Runnable{
 
+    // Lines of the dialog kept in the message area; older ones are dropped.
+    static final int SCROLLBACK_LINES = 10_000;
+
     private String serverAddress;
     private int serverPort;
+    private boolean binary;
+    private boolean tls;
     private Scanner in;
     private PrintWriter out;
+    private DataOutputStream frames;
     private JFrame frame = new JFrame("Chatter");
     private JTextField textField = new JTextField(50);
     private JTextArea messageArea = new JTextArea(16, 50);
+    private MessageFeed messages = new MessageFeed(messageArea, SCROLLBACK_LINES);
 
     /**
      * Constructs the client by laying out the GUI and registering a listener with the
@@ -44,8 +69,18 @@ public class ChatClient implements Runnable{
      * the server.
      */
     public ChatClient(String serverAddress, int serverPort) {
+        this(serverAddress, serverPort, false);
+    }
+
+    public ChatClient(String serverAddress, int serverPort, boolean binary) {
+        this(serverAddress, serverPort, binary, false);
+    }
+
+    public ChatClient(String serverAddress, int serverPort, boolean binary, boolean tls) {
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
+        this.binary = binary;
+        this.tls = tls;
 
         textField.setEditable(false);
         messageArea.setEditable(false);
@@ -59,7 +94,7 @@ public class ChatClient implements Runnable{
         // Send on enter then clear to prepare for next message
         textField.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                out.println(textField.getText());
+                send(textField.getText());
                 textField.setText("");
             }
         });
@@ -74,21 +109,53 @@ public class ChatClient implements Runnable{
         );
     }
 
+    /**
+     * Sends a line or frame to the server. Called by the event thread for what
+     * the user types and by the reader thread for names and PONGs, so frames
+     * are written whole, one at a time.
+     */
+    private synchronized void send(String text) {
+        if (frames == null) {
+            out.println(text);
+            return;
+        }
+        try {
+            frames.write(BinaryCodec.encode(BinaryCodec.TYPE_TEXT, text));
+            frames.flush();
+        } catch (IllegalArgumentException e) {
+            // Longer than the server accepts; sending it would get us dropped.
+            messages.add("Not sent: " + e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public void run() {
         try {
-            Socket socket = new Socket(serverAddress, serverPort);
-            in = new Scanner(socket.getInputStream());
-            out = new PrintWriter(socket.getOutputStream(), true);
+            Socket socket = tls
+                    ? SSLSocketFactory.getDefault().createSocket(serverAddress, serverPort)
+                    : new Socket(serverAddress, serverPort);
+            if (binary) {
+                runBinary(socket);
+                return;
+            }
+            in = new Scanner(socket.getInputStream(), StandardCharsets.UTF_8);
+            out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
 
             while (in.hasNextLine()) {
                 String line = in.nextLine();
                 if (line.startsWith("SUBMITNAME")) {
                     out.println(getName());
                 } else if (line.startsWith("NAMEACCEPTED")) {
-                    this.frame.setTitle("Chatter - " + line.substring(13));
-                    textField.setEditable(true);
+                    nameAccepted(line.substring(13));
                 } else if (line.startsWith("MESSAGE")) {
-                    messageArea.append(line.substring(8) + "\n");
+                    messages.add(line.substring(8));
+                } else if (line.startsWith(Frame.ROSTER + " ")) {
+                    messages.add(roster(line.substring(Frame.ROSTER.length() + 1)));
+                } else if (line.startsWith(Frame.PRESENCE + " ")) {
+                    messages.add(presence(line.substring(Frame.PRESENCE.length() + 1)));
+                } else if (line.equals(Frame.PING)) {
+                    out.println(Frame.PONG);
                 }
             }
 
@@ -102,5 +169,91 @@ public class ChatClient implements Runnable{
         }
     }
 
+    /**
+     * Lets the user start chatting, on the event thread like every change to the GUI.
+     */
+    private void nameAccepted(String name) {
+        SwingUtilities.invokeLater(() -> {
+            frame.setTitle("Chatter - " + name);
+            textField.setEditable(true);
+        });
+    }
+
+    /**
+     * Turns a roster like "#lobby alice bob" into "In #lobby: alice bob".
+     */
+    static String roster(String roster) {
+        int space = roster.indexOf(' ');
+        return space < 0
+                ? "In " + roster + ": nobody"
+                : "In " + roster.substring(0, space) + ":" + roster.substring(space);
+    }
+
+    /**
+     * Turns a change like "#lobby +alice -bob" into "#lobby: alice joined, bob left".
+     */
+    static String presence(String delta) {
+        String[] words = delta.split(" ");
+        StringBuilder line = new StringBuilder(words[0]).append(':');
+        for (int i = 1; i < words.length; i++) {
+            if (words[i].length() < 2) {
+                continue;
+            }
+            line.append(i > 1 ? ", " : " ").append(words[i], 1, words[i].length())
+                    .append(words[i].charAt(0) == '+' ? " joined" : " left");
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads the text SUBMITNAME every connection starts with, asks the server to
+     * switch to binary frames and then handles frames until the server hangs up.
+     */
+    private void runBinary(Socket socket) throws IOException {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        frames = new DataOutputStream(socket.getOutputStream());
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b < 0) {
+                socket.close();
+                return;
+            }
+        }
+        frames.writeByte(WireProtocol.PREAMBLE);
+        frames.writeByte(WireProtocol.VERSION);
+        send(getName());
+
+        byte[] payload = new byte[256];
+        while (true) {
+            int length;
+            try {
+                length = input.readInt();
+            } catch (IOException e) {
+                break;
+            }
+            byte type = input.readByte();
+            BinaryCodec.checkLength(length);
+            if (length > payload.length) {
+                payload = new byte[length];
+            }
+            input.readFully(payload, 0, length);
+            String text = new String(payload, 0, length, StandardCharsets.UTF_8);
+            if (type == BinaryCodec.TYPE_SUBMITNAME) {
+                send(getName());
+            } else if (type == BinaryCodec.TYPE_NAMEACCEPTED) {
+                nameAccepted(text);
+            } else if (type == BinaryCodec.TYPE_MESSAGE) {
+                messages.add(text);
+            } else if (type == BinaryCodec.TYPE_ROSTER) {
+                messages.add(roster(text));
+            } else if (type == BinaryCodec.TYPE_PRESENCE) {
+                messages.add(presence(text));
+            } else if (type == BinaryCodec.TYPE_PING) {
+                send(Frame.PONG);
+            }
+        }
+        socket.close();
+    }
+
     
 }
\ No newline at end of file
@@ -9,13 +9,25 @@ public class ChatClientApp {
     
     public static void main(String[] args) {
         
-        if (args.length != 2) {
-            System.err.println("Pass the server IP and Port as command line arguments");
+        boolean valid = args.length >= 2;
+        boolean binary = false;
+        boolean tls = false;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].equals("--tls")) {
+                tls = true;
+            } else {
+                valid = false;
+            }
+        }
+        if (!valid) {
+            System.err.println("Pass the server IP and Port as command line arguments, optionally followed by --binary and --tls");
             return;
         }
 
         int serverPort = Integer.parseInt(args[1]);
-        ChatClient client = new ChatClient(args[0], serverPort);
+        ChatClient client = new ChatClient(args[0], serverPort, binary, tls);
 
         Thread t = new Thread(client,"Chat client thread");
         t.start();
@@ -0,0 +1,113 @@
+package basic_demo;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A chat room: a name plus the sessions currently in it. Messages said in a
+ * room are only delivered to its members, so the cost of a broadcast grows with
+ * the size of the room rather than with the number of connected clients.
+ *
+ * A room may keep a {@link MessageHistory} of what was said in it, which is
+ * replayed to clients entering the room.
+ */
+final class ChatRoom {
+
+    // Every client starts out in the lobby, which is never removed.
+    static final String LOBBY = "lobby";
+
+    // Longest room name a client may ask for.
+    static final int MAX_NAME_LENGTH = 32;
+
+    private final String name;
+    private final SessionSet members = new SessionSet();
+    // Null if the server keeps no history.
+    private final MessageHistory history;
+
+    ChatRoom(String name, int historyDepth) {
+        this.name = name;
+        this.history = historyDepth > 0 ? new MessageHistory(historyDepth) : null;
+    }
+
+    /**
+     * Returns true if a room name only uses letters, digits, '-' and '_' and is
+     * not too long.
+     */
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String name() {
+        return name;
+    }
+
+    void add(ChatSession session) {
+        members.add(session);
+    }
+
+    boolean remove(ChatSession session) {
+        return members.remove(session);
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    ChatSession[] members() {
+        return members.snapshot();
+    }
+
+    /**
+     * Adds a chat message to the room's history.
+     */
+    void remember(Frame frame) {
+        if (history != null) {
+            history.add(frame);
+        }
+    }
+
+    /**
+     * Returns the messages in the room's history, oldest first.
+     */
+    List<Frame> recentMessages() {
+        return history != null ? history.recent() : Collections.emptyList();
+    }
+
+    /**
+     * Queues a frame for every member of the room.
+     */
+    void broadcast(Frame frame) {
+        for (ChatSession member : members.snapshot()) {
+            member.deliver(frame);
+        }
+    }
+
+    /**
+     * Queues a frame for every member of the room except one.
+     */
+    void broadcast(Frame frame, ChatSession except) {
+        for (ChatSession member : members.snapshot()) {
+            if (member != except) {
+                member.deliver(frame);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "#" + name;
+    }
+}
@@ -1,150 +1,1274 @@
 package basic_demo;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
-import java.util.HashSet;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.message.StringMapMessage;
 
 
 /**
  * A multithreaded chat room server. When a client connects the server requests
  * a screen name by sending the client the text "SUBMITNAME", and keeps
- * requesting a name until a unique one is received. After a client submits a
- * unique name, the server acknowledges with "NAMEACCEPTED". Then all messages
- * from that client will be broadcast to all other clients that have submitted a
- * unique screen name. The broadcast messages are prefixed with "MESSAGE".
+ * requesting a name until a unique one without spaces is received. After a
+ * client submits a unique name, the server acknowledges with "NAMEACCEPTED".
+ * Then all messages from that client will be broadcast to all other clients
+ * that have submitted a unique screen name. The broadcast messages are
+ * prefixed with "MESSAGE".
+ *
+ * Clients start out in the lobby and can move to other rooms with
+ * "/join &lt;room&gt;" and back with "/leave"; messages only reach the members of
+ * the sender's room. Each room remembers its last few messages and replays
+ * them to clients entering it, starting with the lobby right after
+ * NAMEACCEPTED.
+ *
+ * "/msg &lt;name&gt; &lt;text&gt;" sends a private message to one client on this
+ * server, wherever it is, without going through any room. "/help" lists these
+ * and the other commands, see {@link CommandRegistry}.
+ *
+ * Clients that would rather keep a member list than read "has joined" lines
+ * send "/presence". They get "ROSTER #room alice bob" with the members of
+ * their room, again whenever they enter another one, and from then on
+ * "PRESENCE #room +carol -bob" lines batching who came and went, see
+ * {@link Presence}.
  *
  * This is just a teaching example so it can be enhanced in many ways, e.g.,
  * better logging. Another is to accept a lot of fun commands, like Slack.
+ *
+ * The server can run in one of three {@link Mode}s: the original thread pool
+ * with one blocking handler per client, the same blocking handler on a virtual
+ * thread per client, or the non-blocking {@link NioChatServer} which multiplexes
+ * all clients over a handful of selector threads. Whatever the mode, the
+ * protocol itself is implemented once, here, on top of {@link ChatSession}s.
+ *
+ * With a cluster port configured the server joins a {@link ClusterNode}: room
+ * messages and join/leave events are relayed to the other nodes and screen
+ * names are unique across all of them.
+ *
+ * Clients may switch from the text lines to length prefixed binary frames
+ * right after the first SUBMITNAME, see {@link WireProtocol}.
+ *
+ * With a keystore configured the blocking modes talk TLS, see {@link Tls}.
+ *
+ * With a log directory configured everything said in the rooms is appended to
+ * a {@link MessageLog}, from which the lobby's history is restored on restart.
+ *
+ * With an idle timeout configured a client that goes quiet is sent "PING" and
+ * must answer "PONG" or send something else before the timeout, or the
+ * {@link IdleReaper} disconnects it.
+ *
+ * All state lives in the instance, so several servers can run in one JVM.
  */
 public class ChatServer implements Runnable{
 
-    // All client names, so we can check for duplicates upon registration.
-    private static Set<String> names;
+    /**
+     * How client connections are serviced.
+     */
+    public enum Mode {
+        // One pooled thread per connected client, blocked in reads.
+        THREAD_POOL,
+        // One virtual thread per connected client (requires Java 21).
+        VIRTUAL_THREADS,
+        // A few selector-driven event loops shared by all clients.
+        NIO
+    }
+
+    // Size of the platform thread pool used in THREAD_POOL mode.
+    private static final int THREAD_POOL_SIZE = 500;
+
+    // Most frames handed to the socket in one gathering write.
+    static final int WRITE_BATCH_SIZE = 64;
+
+    // A client that sends a longer line than this without a newline is dropped.
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    // Told to every client when the server is stopped.
+    static final String GOING_DOWN = "The server is going down, please reconnect in a moment";
+
+    // Told to a client that sends faster than its rate limit, once per burst.
+    static final String SLOW_DOWN = "You are sending too fast, messages are being dropped";
+
+    // Told to a client that connects while the server is at its connection limit.
+    static final String SERVER_FULL = "The server is full, please try again later";
+
+    // How often stop() checks whether all clients have gone.
+    private static final long DRAIN_CHECK_MILLIS = 10;
+
+    // How many of the last logged messages are searched for the lobby's history on startup.
+    private static final int RESTORE_SCAN_LIMIT = 10_000;
+
+    private final static Logger LOGGER = LogManager.getLogger(ChatServer.class);
+
+    // One structured event per join, leave, room change and message; off unless configured, see log4j2.xml.
+    private final static Logger AUDIT = LogManager.getLogger("basic_demo.audit");
 
-    // The set of all the print writers for all the clients, used for broadcast.
-    private static Set<PrintWriter> writers;
+    // All named clients, so we can check for duplicates upon registration and broadcast.
+    private final ClientRegistry registry = new ClientRegistry();
 
-    private int serverPort;
+    // The slash commands of named clients, registered by the constructor.
+    private final CommandRegistry commands = new CommandRegistry();
+
+    // All rooms that have members, by name. Empty rooms other than the lobby are removed.
+    private final ConcurrentMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+
+    private final ChatServerConfig config;
+
+    // Link to the other nodes of the cluster, null when running on our own.
+    private final ClusterNode cluster;
+
+    // Durable record of room messages, null when not configured.
+    private final MessageLog log;
+
+    // One permit per client that may be connected at the same time.
+    private final Semaphore connectionPermits;
+
+    // Sockets of all connected clients, closed on shutdown to release their handlers.
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    // Every connected client, named or not, in any mode.
+    private final Set<ChatSession> sessions = ConcurrentHashMap.newKeySet();
+
+    // Released once the server accepts connections, or has given up trying.
+    private final CountDownLatch listening = new CountDownLatch(1);
+    private volatile boolean accepting;
+
+    // Released when run() returns.
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    // Messages dropped by the outbound queues of clients that have already left.
+    private final AtomicLong droppedMessages = new AtomicLong();
+
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    // Serves the metrics over HTTP, null when not configured.
+    private final MetricsEndpoint metricsEndpoint;
+
+    // Disconnects silent clients, null without an idle timeout.
+    private final IdleReaper idleReaper;
+
+    // Tells clients following the roster who entered and left their room.
+    private final Presence presence;
+
+    // Splits broadcasts to very large rooms over several threads, null with a single fan-out thread.
+    private final FanOut fanOut;
+
+    // Wraps every client socket in TLS, null for plain text.
+    private SSLContext tls;
+    private ServerSocketChannel listener;
+    private ExecutorService pool;
+    // Runs the task draining each client's outbound queue into its socket.
+    private ExecutorService writerPool;
+    private NioChatServer nioServer;
+    // Set by stop(): no new connections, existing ones are being drained.
+    private boolean draining;
+    private boolean shuttingDown;
 
     public ChatServer(int serverPort){
-        names = new HashSet<String>();
-        writers = new HashSet<PrintWriter>();
-        this.serverPort = serverPort;
+        this(serverPort, Mode.THREAD_POOL);
+    }
+
+    public ChatServer(int serverPort, Mode mode){
+        this(new ChatServerConfig(serverPort).setMode(mode));
     }
 
+    /**
+     * @throws IllegalArgumentException if the config combines TLS with NIO mode
+     */
+    public ChatServer(ChatServerConfig config){
+        if (config.getTlsKeystore() != null && config.getMode() == Mode.NIO) {
+            // The event loops would need an SSLEngine per connection.
+            throw new IllegalArgumentException("TLS is only supported in the threads and virtual modes");
+        }
+        this.config = config;
+        this.connectionPermits = new Semaphore(config.getMaxConnections());
+        this.cluster = config.getClusterPort() > 0 ? new ClusterNode(this, config) : null;
+        this.log = config.getLogDirectory() != null
+                ? new MessageLog(config.getLogDirectory(), config.getLogSegmentSize(), config.getLogFlushIntervalMillis(),
+                        config.getLogRetentionSegments())
+                : null;
+        this.metricsEndpoint = config.getMetricsPort() > 0 ? new MetricsEndpoint(this, config.getMetricsPort()) : null;
+        this.idleReaper = config.getIdleTimeoutSeconds() > 0
+                ? new IdleReaper(metrics, config.getIdleTimeoutSeconds(), TimeUnit.SECONDS)
+                : null;
+        this.presence = new Presence(config.getPresenceWindowMillis());
+        this.fanOut = config.getFanOutThreads() > 1 ? new FanOut(config.getFanOutThreads()) : null;
+        registerCommands();
+    }
+
+    private void registerCommands() {
+        commands.register("join", "/join <room>: move to a room, creating it if needed",
+                        (session, room) -> joinRoom(session, room))
+                .register("leave", "/leave: go back to the lobby",
+                        (session, ignored) -> joinRoom(session, ChatRoom.LOBBY))
+                .register("who", "/who: list who is in your room", (session, ignored) -> who(session))
+                .register("msg", "/msg <name> <text>: send a private message", this::directMessage)
+                .register("presence", "/presence [on|off]: follow your room with ROSTER and PRESENCE frames",
+                        this::followPresence)
+                .register("help", "/help: list the commands", (session, ignored) -> {
+                    for (String usage : commands.usages()) {
+                        session.deliver(Frame.message(usage));
+                    }
+                })
+                .register("quit", "/quit: leave the chat", (session, ignored) -> session.close());
+    }
+
+    /**
+     * Runs the server on a new thread and waits until it accepts connections.
+     *
+     * @return true once the server is accepting connections, false if it could
+     *         not start, e.g. because the port is in use
+     */
+    public boolean start() throws InterruptedException {
+        Thread t = new Thread(this, "Chat Server Main Thread");
+        t.start();
+        listening.await();
+        return accepting;
+    }
+
+    /**
+     * Runs the server on the calling thread until it is stopped or shut down.
+     */
     public void run() {
-        ExecutorService pool = Executors.newFixedThreadPool(500);
-        ServerSocket listener;
         try {
-            listener = new ServerSocket(serverPort);
+            serve();
+        } finally {
+            listening.countDown();
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * Called by the transport once it is bound and accepting connections.
+     */
+    void listening() {
+        accepting = true;
+        listening.countDown();
+    }
+
+    private void serve() {
+        if (config.getTlsKeystore() != null) {
+            try {
+                tls = Tls.serverContext(config.getTlsKeystore(), config.getTlsPassword().toCharArray());
+            } catch (IOException e) {
+                LOGGER.error("Could not set up TLS", e);
+                return;
+            }
+        }
+        if (log != null) {
+            try {
+                log.open();
+                restoreLobbyHistory();
+            } catch (IOException e) {
+                LOGGER.error("Could not open the message log in {}", config.getLogDirectory(), e);
+                return;
+            }
+        }
+        if (cluster != null) {
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                LOGGER.error("Could not join the cluster on port {}", config.getClusterPort(), e);
+                return;
+            }
+        }
+        if (metricsEndpoint != null) {
+            try {
+                metricsEndpoint.start();
+            } catch (IOException e) {
+                LOGGER.error("Could not serve metrics on port {}", config.getMetricsPort(), e);
+                return;
+            }
+        }
+        if (idleReaper != null) {
+            idleReaper.start();
+        }
+        if (config.getMode() == Mode.NIO) {
+            NioChatServer server = new NioChatServer(this, config);
+            synchronized (this) {
+                if (shuttingDown || draining) {
+                    return;
+                }
+                nioServer = server;
+            }
+            server.run();
+            return;
+        }
+        try {
+            synchronized (this) {
+                if (shuttingDown || draining) {
+                    return;
+                }
+                if (config.getMode() == Mode.VIRTUAL_THREADS) {
+                    pool = newVirtualThreadExecutor();
+                    writerPool = newVirtualThreadExecutor();
+                } else {
+                    // Handlers start the writers, so there are never more writers than handlers.
+                    pool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+                    writerPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+                }
+                // Accepting through a channel gives every client socket a channel
+                // as well, which the writers use for gathering writes.
+                listener = ServerSocketChannel.open();
+                listener.bind(new InetSocketAddress(config.getServerPort()));
+            }
+            listening();
             while (true) {
-                pool.execute(new Handler(listener.accept()));
+                SocketChannel channel = listener.accept();
+                if (!connectionPermits.tryAcquire()) {
+                    reject(channel);
+                    continue;
+                }
+                Socket socket;
+                try {
+                    socket = tls != null ? Tls.wrap(tls, channel.socket()) : channel.socket();
+                } catch (IOException e) {
+                    connectionPermits.release();
+                    try { channel.close(); } catch (IOException ignored) {}
+                    continue;
+                }
+                sockets.add(socket);
+                try {
+                    pool.execute(new Handler(this, socket));
+                } catch (RejectedExecutionException e) {
+                    release(socket);
+                    try { socket.close(); } catch (IOException ignored) {}
+                }
             }
         } catch (IOException e) {
-            e.printStackTrace();
-        }        
+            if (!isShuttingDown()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Turns away a connection that would go over the connection limit, telling
+     * the client why rather than leaving it waiting in the listen backlog. The
+     * message is small enough for the socket's send buffer, so this does not
+     * block the acceptor.
+     */
+    void reject(SocketChannel channel) {
+        metrics.connectionRejected();
+        try {
+            channel.write(Frame.message(SERVER_FULL).buffer());
+        } catch (IOException e) {
+        } finally {
+            try { channel.close(); } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Stops the server gracefully within the given time. New connections are
+     * refused, every client is told the server is going down, and each
+     * connection is closed once everything queued for it has been written, so
+     * no client loses messages in flight. Clients that have not gone within
+     * half the time are disconnected by {@link #shutdown}, which gets the rest.
+     *
+     * @return true if every client was gone and every handler finished in time
+     */
+    public boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        NioChatServer nioServer;
+        ServerSocketChannel listener;
+        synchronized (this) {
+            if (draining || shuttingDown) {
+                return awaitTermination(timeout, unit);
+            }
+            draining = true;
+            nioServer = this.nioServer;
+            listener = this.listener;
+        }
+        if (nioServer != null) {
+            nioServer.stopAccepting();
+        } else if (listener != null) {
+            try { listener.close(); } catch (IOException e) {}
+        }
+        LOGGER.info("Stopping, draining {} connections", sessions.size());
+        // Not broadcast: a sender waits for room under the BLOCK policy, and stop() must not.
+        Frame goingDown = Frame.message(GOING_DOWN);
+        for (ChatSession session : sessions) {
+            session.finish(goingDown);
+        }
+        long drainDeadline = deadline - (deadline - System.nanoTime()) / 2;
+        while (!sessions.isEmpty() && System.nanoTime() < drainDeadline) {
+            TimeUnit.MILLISECONDS.sleep(DRAIN_CHECK_MILLIS);
+        }
+        if (!sessions.isEmpty()) {
+            LOGGER.warn("{} connections did not drain in time, closing them", sessions.size());
+        }
+        boolean drained = sessions.isEmpty();
+        return shutdown(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) && drained;
+    }
+
+    /**
+     * Waits until the server has stopped running and, in the blocking modes,
+     * every handler has finished.
+     *
+     * @return true if that happened within the timeout
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!terminated.await(timeout, unit)) {
+            return false;
+        }
+        ExecutorService pool;
+        synchronized (this) {
+            pool = this.pool;
+        }
+        return pool == null || pool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops accepting connections, disconnects all clients and waits for their
+     * handlers to finish. Handlers that are still running after the timeout are
+     * interrupted. Use {@link #stop} to let clients finish first.
+     *
+     * @return true if every handler finished within the timeout
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (this) {
+            if (shuttingDown) {
+                return pool == null || pool.awaitTermination(timeout, unit);
+            }
+            shuttingDown = true;
+        }
+        if (cluster != null) {
+            cluster.shutdown();
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        if (idleReaper != null) {
+            idleReaper.stop();
+        }
+        if (fanOut != null) {
+            fanOut.stop();
+        }
+        presence.stop();
+        try {
+            return stopTransports(timeout, unit);
+        } finally {
+            if (log != null) {
+                try { log.close(); } catch (IOException e) {
+                    LOGGER.error("Could not close the message log", e);
+                }
+            }
+        }
+    }
+
+    private boolean stopTransports(long timeout, TimeUnit unit) throws InterruptedException {
+        if (nioServer != null) {
+            nioServer.shutdown();
+            return true;
+        }
+        if (pool == null) {
+            return true;
+        }
+        try { listener.close(); } catch (IOException e) {}
+        pool.shutdown();
+        writerPool.shutdown();
+        // Handlers sit in a blocking read until their client goes away.
+        for (Socket socket : sockets) {
+            try { socket.close(); } catch (IOException e) {}
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (pool.awaitTermination(timeout, unit)
+                && writerPool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            return true;
+        }
+        LOGGER.warn("Chat handlers did not finish within {} {}, interrupting them", timeout, unit);
+        pool.shutdownNow();
+        writerPool.shutdownNow();
+        return false;
+    }
+
+    /**
+     * Returns the number of messages currently queued for all connections
+     * together, including the ones that have not picked a name yet.
+     */
+    public long getTotalOutboundQueueDepth() {
+        long total = 0;
+        for (ChatSession session : sessions) {
+            total += session.outbound().depth();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the longest outbound queue of any connected client right now,
+     * whether it has a name yet or not.
+     */
+    public int getMaxOutboundQueueDepth() {
+        int max = 0;
+        for (ChatSession session : sessions) {
+            max = Math.max(max, session.outbound().depth());
+        }
+        return max;
+    }
+
+    /**
+     * Returns how many messages were discarded because a client's outbound
+     * queue was full, over the lifetime of the server.
+     */
+    public long getDroppedMessageCount() {
+        long total = droppedMessages.get();
+        for (ChatSession session : sessions) {
+            total += session.outbound().droppedCount();
+        }
+        return total;
+    }
+
+    /**
+     * Returns how many writes all client connections together have made to
+     * their sockets, over the lifetime of the server. Compared with the
+     * number of messages sent it shows how well writes are being batched.
+     */
+    public long getSocketWriteCount() {
+        return metrics.socketWrites();
+    }
+
+    /**
+     * The counters the transports report into.
+     */
+    ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the number of connected clients, including those still
+     * choosing a name.
+     */
+    public int getConnectionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns the number of clients that have a screen name.
+     */
+    public int getSessionCount() {
+        return registry.size();
+    }
+
+    /**
+     * Returns the number of rooms that currently have members.
+     */
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Returns the number of other cluster nodes this server currently relays to.
+     */
+    public int getClusterPeerCount() {
+        return cluster == null ? 0 : cluster.connectedPeerCount();
+    }
+
+    /**
+     * Starts the protocol for a freshly connected client by asking for its name.
+     */
+    void connected(ChatSession session) {
+        metrics.connectionAccepted();
+        sessions.add(session);
+        if (idleReaper != null) {
+            idleReaper.watch(session);
+        }
+        if (config.getMaxMessagesPerSecond() > 0 || config.getMaxBytesPerSecond() > 0) {
+            long now = System.nanoTime();
+            int messages = config.getMaxMessagesPerSecond();
+            int bytes = config.getMaxBytesPerSecond();
+            session.limitRate(messages > 0 ? new TokenBucket(messages, messages, now) : null,
+                    bytes > 0 ? new TokenBucket(bytes, bytes, now) : null);
+        }
+        session.deliver(Frame.submitName());
+    }
+
+    /**
+     * Handles one line received from a client. Until the client has a unique
+     * screen name every line is a name proposal; after that lines are either
+     * commands or messages to broadcast.
+     */
+    void lineReceived(ChatSession session, String input) {
+        metrics.messageReceived();
+        if (idleReaper != null) {
+            session.touch(System.nanoTime());
+            if (session.name() != null && input.equals(Frame.PONG)) {
+                // Only there to show the client is alive.
+                return;
+            }
+        }
+        if (!session.admit(input.length())) {
+            // Dropped before it can fan out to everybody in the room.
+            metrics.messageThrottled();
+            if (session.throttle()) {
+                session.deliver(Frame.message(SLOW_DOWN));
+            }
+            return;
+        }
+        if (session.name() == null) {
+            // Lines sent while the cluster decides on a name are ignored.
+            if (session.pendingName() == null) {
+                register(session, input);
+            }
+            return;
+        }
+        if (commands.dispatch(session, input)) {
+            return;
+        }
+        audit("message", session.name(), session.room().name(), input);
+        chat(session.room(), session.name() + ": " + input);
+    }
+
+    /**
+     * Called by the transport exactly once when a client's connection has ended,
+     * however that happened.
+     */
+    void disconnected(ChatSession session) {
+        String name;
+        synchronized (session) {
+            session.setEnded();
+            name = session.name();
+        }
+        if (name != null && registry.release(name, session)) {
+            LOGGER.info("{} has left the chat", name);
+            if (cluster != null) {
+                cluster.release(name);
+            }
+            ChatRoom room = session.room();
+            audit("leave", name, room.name(), null);
+            removeFromRoom(session, room);
+            say(room, name + " has left", null);
+        }
+        session.outbound().close();
+        droppedMessages.addAndGet(session.outbound().droppedCount());
+        sessions.remove(session);
+    }
+
+    /**
+     * Claims a screen name for a client, asking for another one if it is taken.
+     * In a cluster the name is held locally while the other nodes are asked, and
+     * the client is answered once they have all agreed.
+     */
+    private void register(ChatSession session, String name) {
+        // Names are separated by spaces in /msg, ROSTER and PRESENCE, and by line
+        // breaks in the cluster's messages, which binary clients could send.
+        if (name.isEmpty() || !isValidName(name) || !registry.claim(name, session)) {
+            session.deliver(Frame.submitName());
+            return;
+        }
+        if (cluster == null) {
+            accept(session, name);
+            return;
+        }
+        session.setPendingName(name);
+        cluster.claim(name).whenComplete((granted, failure) -> {
+            synchronized (session) {
+                session.setPendingName(null);
+                if (Boolean.TRUE.equals(granted) && !session.hasEnded()) {
+                    accept(session, name);
+                    return;
+                }
+            }
+            registry.release(name, session);
+            if (Boolean.TRUE.equals(granted)) {
+                cluster.release(name);
+            } else {
+                session.deliver(Frame.submitName());
+            }
+        });
+    }
+
+    private static boolean isValidName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == ' ' || c == '\n' || c == '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives a client the name it claimed and puts it in the lobby. Everybody
+     * else in the lobby is told about the new person before the new person gets
+     * NAMEACCEPTED, and the client is a member of the lobby by then, so once it
+     * reads NAMEACCEPTED it cannot miss a message sent afterwards. The lobby's
+     * history follows NAMEACCEPTED.
+     */
+    private void accept(ChatSession session, String name) {
+        session.setName(name);
+        LOGGER.info("A new user has joined: {}", name);
+        audit("join", name, ChatRoom.LOBBY, null);
+        List<Frame> history = recentMessages(ChatRoom.LOBBY);
+        ChatRoom lobby = addToRoom(session, ChatRoom.LOBBY);
+        say(lobby, name + " has joined", session);
+        session.deliver(Frame.nameAccepted(name));
+        replay(session, history);
+    }
+
+    /**
+     * Moves a named client from its current room to another one, creating the
+     * room if nobody is in it yet.
+     */
+    private void joinRoom(ChatSession session, String roomName) {
+        if (roomName.startsWith("#")) {
+            roomName = roomName.substring(1);
+        }
+        ChatRoom from = session.room();
+        if (!ChatRoom.isValidName(roomName)) {
+            session.deliver(Frame.message("Room names are 1 to " + ChatRoom.MAX_NAME_LENGTH
+                    + " letters, digits, '-' or '_'"));
+            return;
+        }
+        if (from.name().equals(roomName)) {
+            session.deliver(Frame.message("You are already in " + from));
+            return;
+        }
+        String name = session.name();
+        audit("enter", name, roomName, null);
+        removeFromRoom(session, from);
+        say(from, name + " has left " + from, null);
+        List<Frame> history = recentMessages(roomName);
+        ChatRoom to = addToRoom(session, roomName);
+        say(to, name + " has joined " + to, session);
+        session.deliver(Frame.message("You are now in " + to));
+        if (session.followsPresence()) {
+            session.deliver(Presence.roster(to));
+        }
+        replay(session, history);
+    }
+
+    /**
+     * Tells a client who is in its room, on this node.
+     */
+    private void who(ChatSession session) {
+        ChatRoom room = session.room();
+        if (session.followsPresence()) {
+            session.deliver(Presence.roster(room));
+            return;
+        }
+        StringBuilder names = new StringBuilder("In ").append(room).append(':');
+        for (ChatSession member : room.members()) {
+            names.append(' ').append(member.name());
+        }
+        session.deliver(Frame.message(names.toString()));
+    }
+
+    /**
+     * Switches a client between join and leave messages and following the
+     * roster of its room, which starts with a ROSTER of the room.
+     */
+    private void followPresence(ChatSession session, String arguments) {
+        boolean on;
+        if (arguments.isEmpty() || arguments.equalsIgnoreCase("on")) {
+            on = true;
+        } else if (arguments.equalsIgnoreCase("off")) {
+            on = false;
+        } else {
+            session.deliver(Frame.message("Use /presence on or /presence off"));
+            return;
+        }
+        session.setFollowsPresence(on);
+        if (on) {
+            session.deliver(Presence.roster(session.room()));
+        }
+    }
+
+    /**
+     * Sends a private message from one client to another. The recipient is
+     * found with a single lookup of its name in the registry and is the only
+     * one to get the message, besides the sender's own copy, so it costs the
+     * same however many clients are connected. Private messages are neither
+     * kept in a history nor logged, and do not reach clients of other cluster
+     * nodes.
+     */
+    private void directMessage(ChatSession session, String arguments) {
+        int space = arguments.indexOf(' ');
+        if (space < 0) {
+            session.deliver(Frame.message("Use /msg <name> <text> to send a private message"));
+            return;
+        }
+        String name = arguments.substring(0, space);
+        String text = arguments.substring(space + 1).trim();
+        ChatSession recipient = registry.lookup(name);
+        // A name still being agreed on by the cluster is held but not yet in use.
+        if (recipient == null || !name.equals(recipient.name())) {
+            session.deliver(Frame.message("Nobody called " + name + " is on this server"));
+            return;
+        }
+        audit("private", session.name(), "@" + name, text);
+        recipient.deliver(Frame.message(session.name() + " (private): " + text));
+        if (recipient != session) {
+            session.deliver(Frame.message("to " + name + " (private): " + text));
+        }
+    }
+
+    /**
+     * Returns the history of a room. Reading it before the client enters the
+     * room keeps the replay from repeating what the client then gets live,
+     * short of a message being broadcast at that very moment.
+     */
+    private List<Frame> recentMessages(String roomName) {
+        ChatRoom room = rooms.get(roomName);
+        return room != null ? room.recentMessages() : Collections.emptyList();
+    }
+
+    private static void replay(ChatSession session, List<Frame> history) {
+        for (Frame frame : history) {
+            session.deliver(frame);
+        }
+    }
+
+    private ChatRoom addToRoom(ChatSession session, String roomName) {
+        // compute() keeps this atomic with removing the room when it runs empty.
+        ChatRoom room = rooms.compute(roomName, (key, existing) -> {
+            ChatRoom target = existing != null ? existing : new ChatRoom(key, config.getHistoryDepth());
+            target.add(session);
+            return target;
+        });
+        session.setRoom(room);
+        presence.changed(room, session.name(), true);
+        return room;
+    }
+
+    private void removeFromRoom(ChatSession session, ChatRoom room) {
+        rooms.computeIfPresent(room.name(), (key, existing) -> {
+            existing.remove(session);
+            return existing.isEmpty() && !key.equals(ChatRoom.LOBBY) ? null : existing;
+        });
+        presence.changed(room, session.name(), false);
+    }
+
+    /**
+     * Tells the members of a room that someone joined or left, on this node
+     * and, in a cluster, on all the others. Local clients following the
+     * roster skip the message, they get a PRESENCE frame instead.
+     *
+     * @param except a local member that should not get the message, or null
+     */
+    private void say(ChatRoom room, String text, ChatSession except) {
+        broadcast(room, Frame.presenceMessage(text), except);
+        append(room.name(), text, MessageLog.KIND_ANNOUNCEMENT);
+        if (cluster != null) {
+            cluster.relay(room.name(), text, false);
+        }
+    }
+
+    /**
+     * Like {@link #say}, for a message a client said, which is also added to
+     * the room's history.
+     */
+    private void chat(ChatRoom room, String text) {
+        Frame frame = Frame.message(text);
+        room.remember(frame);
+        broadcast(room, frame, null);
+        append(room.name(), text, MessageLog.KIND_CHAT);
+        if (cluster != null) {
+            cluster.relay(room.name(), text, true);
+        }
+    }
+
+    /**
+     * Queues a frame for the local members of a room and records how long
+     * that took. Very large rooms are shared out among the fan-out threads.
+     */
+    private void broadcast(ChatRoom room, Frame frame, ChatSession except) {
+        long start = System.nanoTime();
+        if (fanOut != null) {
+            fanOut.broadcast(room.members(), frame, except);
+        } else {
+            room.broadcast(frame, except);
+        }
+        metrics.broadcastCompleted(System.nanoTime() - start);
+    }
+
+    /**
+     * Writes an event to the audit log. Nothing is built unless the audit log
+     * is enabled.
+     *
+     * @param roomName the room, or "@" and the recipient for a private message
+     * @param text what was said, or null for events other than messages
+     */
+    private static void audit(String event, String name, String roomName, String text) {
+        if (!AUDIT.isInfoEnabled()) {
+            return;
+        }
+        StringMapMessage message = new StringMapMessage(4)
+                .with("event", event)
+                .with("name", name)
+                .with("room", roomName);
+        if (text != null) {
+            message.with("text", text);
+        }
+        AUDIT.info(message);
+    }
+
+    /**
+     * Adds a message to the log, if there is one. Appending only copies the
+     * message into a memory-mapped segment; the disk is written in the
+     * background.
+     */
+    private void append(String roomName, String text, byte kind) {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.append(roomName, text, kind);
+        } catch (IOException e) {
+            LOGGER.error("Could not log a message for #{}", roomName, e);
+        }
+    }
+
+    /**
+     * Fills the lobby's history with the last chat messages in the log, so
+     * clients coming back after a restart see what was said before it.
+     */
+    private void restoreLobbyHistory() throws IOException {
+        int depth = config.getHistoryDepth();
+        if (depth == 0) {
+            return;
+        }
+        ChatRoom lobby = rooms.computeIfAbsent(ChatRoom.LOBBY, name -> new ChatRoom(name, depth));
+        long end = log.nextOffset();
+        long from = Math.max(0, end - RESTORE_SCAN_LIMIT);
+        while (from < end) {
+            List<MessageLog.Entry> entries = log.read(from, 1000);
+            if (entries.isEmpty()) {
+                break;
+            }
+            for (MessageLog.Entry entry : entries) {
+                if (entry.isChat() && entry.room.equals(ChatRoom.LOBBY)) {
+                    lobby.remember(Frame.message(entry.text));
+                }
+            }
+            from = entries.get(entries.size() - 1).offset + 1;
+        }
+    }
+
+    /**
+     * Delivers a message relayed by another cluster node to the local members
+     * of a room. Nobody is told if the room has no members here.
+     *
+     * @param chat true if a client said it, so it goes into the room's history
+     */
+    void relayed(String roomName, String text, boolean chat) {
+        ChatRoom room = rooms.get(roomName);
+        if (room != null) {
+            Frame frame = Frame.message(text);
+            if (chat) {
+                room.remember(frame);
+            }
+            broadcast(room, frame, null);
+            append(roomName, text, chat ? MessageLog.KIND_CHAT : MessageLog.KIND_ANNOUNCEMENT);
+        }
+    }
+
+    /**
+     * Returns true if a local client holds the name or is claiming it.
+     */
+    boolean isLocalName(String name) {
+        return registry.lookup(name) != null;
+    }
+
+    /**
+     * Returns the names of the local clients that have been accepted.
+     */
+    List<String> localNames() {
+        List<String> names = new ArrayList<>();
+        for (ChatSession session : registry.sessions()) {
+            String name = session.name();
+            if (name != null) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Queues a frame for every named client, whatever room it is in. The frame
+     * is encoded once and its bytes are shared by all recipients. Offering never
+     * waits for the network, only the BLOCK overflow policy may wait for a full
+     * queue.
+     */
+    void broadcast(Frame frame) {
+        for (ChatSession session : registry.sessions()) {
+            session.deliver(frame);
+        }
+    }
+
+    private synchronized boolean isShuttingDown() {
+        return shuttingDown || draining;
+    }
+
+    private void release(Socket socket) {
+        sockets.remove(socket);
+        connectionPermits.release();
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for every task. It is
+     * looked up reflectively so the server still builds and runs on Java versions
+     * that predate virtual threads, as long as this mode is not selected.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or newer, running on "
+                    + System.getProperty("java.version"), e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        }
     }
 
     /**
      * The client handler task.
      */
-    private static class Handler implements Runnable {
-        private String name;
+    private static class Handler extends ChatSession implements Runnable {
+        private final ChatServer server;
         private Socket socket;
-        private Scanner in;
-        private PrintWriter out;
-
-        private final static Logger LOGGER = LogManager.getLogger(Handler.class);
+        private LineReader in;
 
         /**
          * Constructs a handler thread, squirreling away the socket. All the interesting
          * work is done in the run method. Remember the constructor is called from the
          * server's main method, so this has to be as short as possible.
          */
-        public Handler(Socket socket) {
+        public Handler(ChatServer server, Socket socket) {
+            super(server.config.getOutboundQueueCapacity(), server.config.getOverflowPolicy());
+            this.server = server;
             this.socket = socket;
         }
 
         /**
-         * Services this thread's client by repeatedly requesting a screen name until a
-         * unique one has been submitted, then acknowledges the name and registers the
-         * output stream for the client in a global set, then repeatedly gets inputs and
-         * broadcasts them.
+         * Services this thread's client: starts the writer that drains the client's
+         * outbound queue, then feeds every line the client sends to the server until
+         * the connection ends. Asking for a unique name and broadcasting are the
+         * server's business.
          */
         public void run() {
             try {
-                in = new Scanner(socket.getInputStream());
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                // Keep requesting a name until we get a unique one.
-                while (true) {
-                    out.println("SUBMITNAME");
-                    name = in.nextLine();
-                    if (name == null) {
-                        return;
-                    }
-                    synchronized (names) {
-                        if (!name.isEmpty() && !names.contains(name)) {
-                            names.add(name);
-                            LOGGER.info("A new user has joined: " + name);
-                            break;
-                        }
+                InputStream input = new BufferedInputStream(new MeteredInputStream(socket.getInputStream(), server.metrics));
+                server.writerPool.execute(this::writeOutbound);
+
+                server.connected(this);
+                if (negotiateBinary(input)) {
+                    readFrames(new DataInputStream(input));
+                } else {
+                    in = new LineReader(input, MAX_LINE_LENGTH);
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        server.lineReceived(this, line);
                     }
                 }
-
-                // Now that a successful name has been chosen, add the socket's print writer
-                // to the set of all writers so this client can receive broadcast messages.
-                // But BEFORE THAT, let everyone else know that the new person has joined!
-                out.println("NAMEACCEPTED " + name);
-                for (PrintWriter writer : writers) {
-                    writer.println("MESSAGE " + name + " has joined");
+            } catch (ProtocolException e) {
+                LOGGER.warn("Dropping client: {}", e.getMessage());
+            } catch (IOException e) {
+                // A socket closed by the server, after /quit, an idle or overflow disconnect or on
+                // shutdown, breaks the read on purpose; anything else is the client going away.
+                if (!socket.isClosed()) {
+                    LOGGER.debug("Lost client: {}", e.toString());
                 }
-                synchronized(writers){
-                    writers.add(out);
+            } catch (RuntimeException e) {
+                LOGGER.error("Client handler failed", e);
+            } finally {
+                server.disconnected(this);
+                try { socket.close(); } catch (IOException e) {}
+                server.release(socket);
+            }
+        }
+
+        /**
+         * Looks for the binary protocol preamble at the start of what the client
+         * sends. Anything else is left in the stream for the text protocol.
+         */
+        private boolean negotiateBinary(InputStream input) throws IOException {
+            input.mark(2);
+            if (input.read() != WireProtocol.PREAMBLE) {
+                input.reset();
+                return false;
+            }
+            int version = input.read();
+            if (version != WireProtocol.VERSION) {
+                throw new ProtocolException("Unsupported binary protocol version " + version);
+            }
+            setProtocol(WireProtocol.BINARY);
+            return true;
+        }
+
+        /**
+         * Feeds the text of every binary frame the client sends to the server,
+         * reusing one payload buffer for all of them.
+         */
+        private void readFrames(DataInputStream input) throws IOException {
+            byte[] payload = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    return;
                 }
- 
-                // Accept messages from this client and broadcast them.
-                while (true) {
-                    String input = in.nextLine();
-                    if (input.toLowerCase().startsWith("/quit")) {
-                        return;
-                    }
-                    for (PrintWriter writer : writers) {
-                        writer.println("MESSAGE " + name + ": " + input);
-                    }
+                BinaryCodec.checkHeader(length, input.readByte());
+                if (length > payload.length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
                 }
-            } catch (NoSuchElementException e){
-                return;
+                input.readFully(payload, 0, length);
+                server.lineReceived(this, new String(payload, 0, length, StandardCharsets.UTF_8));
             }
-            catch (Exception e) {
-                System.out.println(e);
-            } finally {
-                if (out != null) {
-                    synchronized(writers){
-                       writers.remove(out);
+        }
+
+        /**
+         * Runs on its own thread and writes whatever is queued for this client. Frames
+         * that queued up while the previous write was in progress go out together, in a
+         * single gathering write when the socket has a channel.
+         *
+         * With a flush delay configured the writer also holds a batch back for up to
+         * that long waiting for more frames, unless the batch reaches the flush
+         * threshold first.
+         */
+        private void writeOutbound() {
+            // A TLS socket hands out the channel of the plain socket underneath, which must not be written to.
+            SocketChannel channel = socket instanceof SSLSocket ? null : socket.getChannel();
+            long flushDelay = TimeUnit.MICROSECONDS.toNanos(server.config.getFlushDelayMicros());
+            int flushThreshold = server.config.getFlushThresholdBytes();
+            ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH_SIZE];
+            try {
+                OutputStream stream = channel == null
+                        ? new BufferedOutputStream(socket.getOutputStream(), Math.max(8192, flushThreshold))
+                        : null;
+                Frame frame;
+                while ((frame = outbound().take()) != null) {
+                    long deadline = System.nanoTime() + flushDelay;
+                    int count = 0;
+                    int frames = 0;
+                    int bytes = 0;
+                    do {
+                        if (channel != null) {
+                            ByteBuffer buffer = frame.buffer(protocol());
+                            batch[count++] = buffer;
+                            bytes += buffer.remaining();
+                        } else {
+                            frame.writeTo(stream, protocol());
+                            bytes += frame.length(protocol());
+                        }
+                        frames++;
+                        if (count == batch.length || bytes >= flushThreshold) {
+                            count = write(channel, stream, batch, count, frames, bytes);
+                            frames = 0;
+                            bytes = 0;
+                        }
+                        frame = outbound().poll();
+                        if (frame == null && flushDelay > 0) {
+                            long wait = deadline - System.nanoTime();
+                            if (wait > 0) {
+                                frame = outbound().poll(wait, TimeUnit.NANOSECONDS);
+                            }
+                        }
+                    } while (frame != null);
+                    if (frames > 0) {
+                        write(channel, stream, batch, count, frames, bytes);
                     }
                 }
-                if (name != null) {
-                    LOGGER.info(name + " has left the chat");
-                    synchronized(names){
-                        names.remove(name);
-                    }
-                    for (PrintWriter writer : writers) {
-                        writer.println("MESSAGE " + name + " has left");
+                // The queue was finished or closed: let the client read to the end of the stream.
+                socket.shutdownOutput();
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        /**
+         * Hands what was batched up to the socket and returns the new, empty
+         * batch size.
+         */
+        private int write(SocketChannel channel, OutputStream stream, ByteBuffer[] batch, int count,
+                          int frames, int bytes) throws IOException {
+            if (channel != null) {
+                int first = 0;
+                while (first < count) {
+                    long written = channel.write(batch, first, count - first);
+                    int done = first;
+                    while (first < count && !batch[first].hasRemaining()) {
+                        first++;
                     }
+                    server.metrics.written(first - done, written);
                 }
-                try { socket.close(); } catch (IOException e) {}
+                Arrays.fill(batch, 0, count, null);
+            } else {
+                stream.flush();
+                server.metrics.written(frames, bytes);
+            }
+            return 0;
+        }
+
+        /**
+         * Closes the socket, which makes the read loop in run() end and clean up.
+         */
+        @Override
+        void close() {
+            try { socket.close(); } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Counts the bytes a blocking handler reads from its socket.
+     */
+    private static final class MeteredInputStream extends FilterInputStream {
+        private final ServerMetrics metrics;
+
+        MeteredInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                metrics.bytesReceived(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                metrics.bytesReceived(n);
             }
+            return n;
         }
     }
-}
\ No newline at end of file
+}
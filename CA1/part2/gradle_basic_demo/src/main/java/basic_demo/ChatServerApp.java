@@ -1,24 +1,62 @@
 package basic_demo;
 
+import java.util.concurrent.TimeUnit;
+
 /**
- * A simple app that launches a multithreaded chat room server. 
+ * A simple app that launches a multithreaded chat room server.
+ *
+ * Usage: ChatServerApp &lt;port&gt; [--mode=threads|virtual|nio] [--max-connections=N] [--io-threads=N]
+ *                      [--fanout-threads=N]
+ *                      [--queue-capacity=N] [--overflow=drop-oldest|disconnect|block] [--history=N]
+ *                      [--presence-window-millis=N]
+ *                      [--max-messages-per-second=N] [--max-bytes-per-second=N]
+ *                      [--idle-timeout=seconds]
+ *                      [--flush-delay-micros=N] [--flush-threshold=bytes]
+ *                      [--log-dir=path] [--log-segment-size=bytes] [--log-flush-millis=N]
+ *                      [--log-retention-segments=N]
+ *                      [--metrics-port=N] [--tls-keystore=path --tls-password=secret]
+ *                      [--cluster-port=N --peers=host:port,...]
  */
 public class ChatServerApp{
 
     public static void main(String[] args) throws Exception {
 
-        if (args.length != 1) {
-            System.err.println("Pass the server port as the sole command line argument");
+        ChatServerConfig config;
+        ChatServer chatServer;
+        try {
+            config = ChatServerConfig.fromArgs(args);
+            chatServer = new ChatServer(config);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: ChatServerApp <port> [--mode=threads|virtual|nio]"
+                    + " [--max-connections=N] [--io-threads=N] [--fanout-threads=N]"
+                    + " [--queue-capacity=N] [--overflow=drop-oldest|disconnect|block] [--history=N]"
+                    + " [--presence-window-millis=N]"
+                    + " [--max-messages-per-second=N] [--max-bytes-per-second=N]"
+                    + " [--idle-timeout=seconds]"
+                    + " [--flush-delay-micros=N] [--flush-threshold=bytes]"
+                    + " [--log-dir=path] [--log-segment-size=bytes] [--log-flush-millis=N]"
+                    + " [--log-retention-segments=N]"
+                    + " [--metrics-port=N] [--tls-keystore=path --tls-password=secret]"
+                    + " [--cluster-port=N --peers=host:port,...]");
             return;
         }
 
-        int serverPort = Integer.parseInt(args[0]);
+        if (!chatServer.start()) {
+            System.err.println("The chat server could not be started");
+            System.exit(1);
+        }
 
-        ChatServer chatServer = new ChatServer(serverPort);
-        Thread t = new Thread(chatServer,"Chat Server Main Thread");        
-        t.start();
+        // Stopping the JVM, e.g. with Ctrl-C or a deploy's SIGTERM, drains the clients first.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                chatServer.stop(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "Chat Server Shutdown Hook"));
 
-        System.out.println("The chat server is running...");
+        System.out.println("The chat server is running in " + config.getMode() + " mode...");
     }
 
-}
\ No newline at end of file
+}
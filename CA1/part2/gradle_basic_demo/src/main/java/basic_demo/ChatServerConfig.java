@@ -0,0 +1,528 @@
+package basic_demo;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The tunables of a {@link ChatServer}. Every setting has a default that matches
+ * the original behaviour of the server, so a config that only carries a port
+ * starts the classic thread pool server.
+ *
+ * Settings can also be parsed from the command line, see {@link #fromArgs(String[])}.
+ */
+public class ChatServerConfig {
+
+    private final int serverPort;
+    private ChatServer.Mode mode = ChatServer.Mode.THREAD_POOL;
+    private int maxConnections = Integer.MAX_VALUE;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private int fanOutThreads = 1;
+    private int outboundQueueCapacity = 1024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private int maxMessagesPerSecond;
+    private int maxBytesPerSecond;
+    private int historyDepth;
+    private long presenceWindowMillis = 100;
+    private int idleTimeoutSeconds;
+    private long flushDelayMicros;
+    private int flushThresholdBytes = 16 * 1024;
+    private File logDirectory;
+    private int logSegmentSize = 64 * 1024 * 1024;
+    private long logFlushIntervalMillis = 1000;
+    private int logRetentionSegments;
+    private int metricsPort;
+    private File tlsKeystore;
+    private String tlsPassword = "";
+    private int clusterPort;
+    private List<InetSocketAddress> peers = Collections.emptyList();
+
+    public ChatServerConfig(int serverPort) {
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * Parses "&lt;port&gt; [--option=value ...]". Supported options are
+     * --mode=threads|virtual|nio, --max-connections=N, --io-threads=N, --fanout-threads=N,
+     * --queue-capacity=N, --overflow=drop-oldest|disconnect|block, --history=N, --presence-window-millis=N,
+     * --max-messages-per-second=N, --max-bytes-per-second=N, --idle-timeout=seconds,
+     * --flush-delay-micros=N, --flush-threshold=bytes,
+     * --log-dir=path, --log-segment-size=bytes, --log-flush-millis=N,
+     * --log-retention-segments=N, --metrics-port=N,
+     * --tls-keystore=path, --tls-password=secret,
+     * --cluster-port=N and --peers=host:port,host:port.
+     *
+     * @throws IllegalArgumentException if an argument is missing or malformed
+     */
+    public static ChatServerConfig fromArgs(String[] args) {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("The server port is required");
+        }
+        ChatServerConfig config = new ChatServerConfig(parseInt("port", args[0]));
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --option=value but got " + arg);
+            }
+            String option = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (option) {
+                case "mode":
+                    config.setMode(parseMode(value));
+                    break;
+                case "max-connections":
+                    config.setMaxConnections(parseInt(option, value));
+                    break;
+                case "io-threads":
+                    config.setIoThreads(parseInt(option, value));
+                    break;
+                case "fanout-threads":
+                    config.setFanOutThreads(parseInt(option, value));
+                    break;
+                case "queue-capacity":
+                    config.setOutboundQueueCapacity(parseInt(option, value));
+                    break;
+                case "overflow":
+                    config.setOverflowPolicy(parseOverflowPolicy(value));
+                    break;
+                case "max-messages-per-second":
+                    config.setMaxMessagesPerSecond(parseInt(option, value));
+                    break;
+                case "max-bytes-per-second":
+                    config.setMaxBytesPerSecond(parseInt(option, value));
+                    break;
+                case "history":
+                    config.setHistoryDepth(parseInt(option, value));
+                    break;
+                case "presence-window-millis":
+                    config.setPresenceWindowMillis(parseInt(option, value));
+                    break;
+                case "idle-timeout":
+                    config.setIdleTimeoutSeconds(parseInt(option, value));
+                    break;
+                case "flush-delay-micros":
+                    config.setFlushDelayMicros(parseInt(option, value));
+                    break;
+                case "flush-threshold":
+                    config.setFlushThresholdBytes(parseInt(option, value));
+                    break;
+                case "log-dir":
+                    config.setLogDirectory(new File(value));
+                    break;
+                case "log-segment-size":
+                    config.setLogSegmentSize(parseInt(option, value));
+                    break;
+                case "log-flush-millis":
+                    config.setLogFlushIntervalMillis(parseInt(option, value));
+                    break;
+                case "log-retention-segments":
+                    config.setLogRetentionSegments(parseInt(option, value));
+                    break;
+                case "metrics-port":
+                    config.setMetricsPort(parseInt(option, value));
+                    break;
+                case "tls-keystore":
+                    config.setTlsKeystore(new File(value));
+                    break;
+                case "tls-password":
+                    config.setTlsPassword(value);
+                    break;
+                case "cluster-port":
+                    config.setClusterPort(parseInt(option, value));
+                    break;
+                case "peers":
+                    config.setPeers(parsePeers(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option --" + option);
+            }
+        }
+        return config;
+    }
+
+    private static ChatServer.Mode parseMode(String value) {
+        switch (value.toLowerCase()) {
+            case "threads":
+                return ChatServer.Mode.THREAD_POOL;
+            case "virtual":
+                return ChatServer.Mode.VIRTUAL_THREADS;
+            case "nio":
+                return ChatServer.Mode.NIO;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + value + ", expected threads, virtual or nio");
+        }
+    }
+
+    private static OverflowPolicy parseOverflowPolicy(String value) {
+        try {
+            return OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown overflow policy " + value
+                    + ", expected drop-oldest, disconnect or block");
+        }
+    }
+
+    private static List<InetSocketAddress> parsePeers(String value) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Expected host:port but got " + peer);
+            }
+            peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                    parseInt("peers", peer.substring(colon + 1))));
+        }
+        return peers;
+    }
+
+    private static int parseInt(String option, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+        }
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    public ChatServer.Mode getMode() {
+        return mode;
+    }
+
+    public ChatServerConfig setMode(ChatServer.Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * The maximum number of clients connected at the same time. Once reached,
+     * further connections are told the server is full and closed right away.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public ChatServerConfig setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("max-connections must be positive");
+        }
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * Number of selector threads, only used in {@link ChatServer.Mode#NIO} mode.
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public ChatServerConfig setIoThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("io-threads must be positive");
+        }
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    /**
+     * Number of threads, the sender's included, that queue a message for the
+     * members of a room of more than {@link FanOut#MIN_SHARD_SIZE} twice
+     * over. Defaults to 1, which keeps every broadcast on the sender's
+     * thread; the number of cores is a good choice for very large rooms.
+     */
+    public int getFanOutThreads() {
+        return fanOutThreads;
+    }
+
+    public ChatServerConfig setFanOutThreads(int fanOutThreads) {
+        if (fanOutThreads < 1) {
+            throw new IllegalArgumentException("fanout-threads must be positive");
+        }
+        this.fanOutThreads = fanOutThreads;
+        return this;
+    }
+
+    /**
+     * How many messages may wait for a single client before the overflow
+     * policy kicks in.
+     */
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public ChatServerConfig setOutboundQueueCapacity(int outboundQueueCapacity) {
+        if (outboundQueueCapacity < 1) {
+            throw new IllegalArgumentException("queue-capacity must be positive");
+        }
+        this.outboundQueueCapacity = outboundQueueCapacity;
+        return this;
+    }
+
+    /**
+     * What happens to a message for a client whose queue is full. Defaults to
+     * {@link OverflowPolicy#BLOCK}: the sender waits, as it did when the server
+     * wrote to every client itself.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public ChatServerConfig setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * How many recent messages each room keeps to replay to clients entering
+     * it. 0, the default, keeps none.
+     */
+    public int getHistoryDepth() {
+        return historyDepth;
+    }
+
+    public ChatServerConfig setHistoryDepth(int historyDepth) {
+        if (historyDepth < 0) {
+            throw new IllegalArgumentException("history must not be negative");
+        }
+        this.historyDepth = historyDepth;
+        return this;
+    }
+
+    /**
+     * How many lines a single client may send per second, with a burst of one
+     * second's worth. Lines over the limit are dropped. 0, the default, means
+     * no limit.
+     */
+    public int getMaxMessagesPerSecond() {
+        return maxMessagesPerSecond;
+    }
+
+    public ChatServerConfig setMaxMessagesPerSecond(int maxMessagesPerSecond) {
+        if (maxMessagesPerSecond < 0) {
+            throw new IllegalArgumentException("max-messages-per-second must not be negative");
+        }
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+        return this;
+    }
+
+    /**
+     * Like {@link #getMaxMessagesPerSecond()}, for the amount of text a client
+     * sends. Text is counted in characters, which for plain ASCII are bytes.
+     */
+    public int getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    public ChatServerConfig setMaxBytesPerSecond(int maxBytesPerSecond) {
+        if (maxBytesPerSecond < 0) {
+            throw new IllegalArgumentException("max-bytes-per-second must not be negative");
+        }
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        return this;
+    }
+
+    /**
+     * How long changes to the members of a room are collected before the
+     * clients following its roster are told about them in one PRESENCE frame,
+     * see {@link Presence}. 0 tells them about every change right away.
+     */
+    public long getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+
+    public ChatServerConfig setPresenceWindowMillis(long presenceWindowMillis) {
+        if (presenceWindowMillis < 0) {
+            throw new IllegalArgumentException("presence-window-millis must not be negative");
+        }
+        this.presenceWindowMillis = presenceWindowMillis;
+        return this;
+    }
+
+    /**
+     * How long a client may stay silent before it is disconnected. Silent
+     * clients are sent a PING half way, so a client that is still there only
+     * needs to answer with PONG. 0, the default, never disconnects anybody.
+     */
+    public int getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    public ChatServerConfig setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+        if (idleTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("idle-timeout must not be negative");
+        }
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+        return this;
+    }
+
+    /**
+     * How long the writer of a blocking mode client holds back a batch of
+     * messages waiting for more, so a burst reaches the socket in a few large
+     * writes instead of one per message. 0, the default, writes as soon as the
+     * writer gets to a message. In {@link ChatServer.Mode#NIO} mode each event
+     * loop writes once per pass over its connections regardless.
+     */
+    public long getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+
+    public ChatServerConfig setFlushDelayMicros(long flushDelayMicros) {
+        if (flushDelayMicros < 0) {
+            throw new IllegalArgumentException("flush-delay-micros must not be negative");
+        }
+        this.flushDelayMicros = flushDelayMicros;
+        return this;
+    }
+
+    /**
+     * How many bytes a held back batch may grow to before it is written
+     * without waiting for the rest of the flush delay.
+     */
+    public int getFlushThresholdBytes() {
+        return flushThresholdBytes;
+    }
+
+    public ChatServerConfig setFlushThresholdBytes(int flushThresholdBytes) {
+        if (flushThresholdBytes < 1) {
+            throw new IllegalArgumentException("flush-threshold must be positive");
+        }
+        this.flushThresholdBytes = flushThresholdBytes;
+        return this;
+    }
+
+    /**
+     * Where the {@link MessageLog} keeps its segments, or null to not log
+     * messages at all.
+     */
+    public File getLogDirectory() {
+        return logDirectory;
+    }
+
+    public ChatServerConfig setLogDirectory(File logDirectory) {
+        this.logDirectory = logDirectory;
+        return this;
+    }
+
+    /**
+     * Size in bytes of each message log segment file.
+     */
+    public int getLogSegmentSize() {
+        return logSegmentSize;
+    }
+
+    public ChatServerConfig setLogSegmentSize(int logSegmentSize) {
+        if (logSegmentSize < 1024) {
+            throw new IllegalArgumentException("log-segment-size must be at least 1024");
+        }
+        this.logSegmentSize = logSegmentSize;
+        return this;
+    }
+
+    /**
+     * How often the message log is forced to disk, which is also how much a
+     * crash may lose.
+     */
+    public long getLogFlushIntervalMillis() {
+        return logFlushIntervalMillis;
+    }
+
+    public ChatServerConfig setLogFlushIntervalMillis(long logFlushIntervalMillis) {
+        if (logFlushIntervalMillis < 1) {
+            throw new IllegalArgumentException("log-flush-millis must be positive");
+        }
+        this.logFlushIntervalMillis = logFlushIntervalMillis;
+        return this;
+    }
+
+    /**
+     * How many message log segments are kept on disk, the one being written
+     * included; older ones are deleted. 0, the default, keeps all of them.
+     */
+    public int getLogRetentionSegments() {
+        return logRetentionSegments;
+    }
+
+    public ChatServerConfig setLogRetentionSegments(int logRetentionSegments) {
+        if (logRetentionSegments < 0 || logRetentionSegments == 1) {
+            throw new IllegalArgumentException("log-retention-segments must be 0 or at least 2");
+        }
+        this.logRetentionSegments = logRetentionSegments;
+        return this;
+    }
+
+    /**
+     * The local port serving the server's metrics over HTTP at /metrics, or
+     * 0, the default, to not serve them.
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public ChatServerConfig setMetricsPort(int metricsPort) {
+        if (metricsPort < 0 || metricsPort > 65535) {
+            throw new IllegalArgumentException("metrics-port must be between 0 and 65535");
+        }
+        this.metricsPort = metricsPort;
+        return this;
+    }
+
+    /**
+     * The PKCS12 keystore with the server's key and certificate, or null, the
+     * default, to talk plain text. TLS is only supported by the blocking
+     * modes.
+     */
+    public File getTlsKeystore() {
+        return tlsKeystore;
+    }
+
+    public ChatServerConfig setTlsKeystore(File tlsKeystore) {
+        this.tlsKeystore = tlsKeystore;
+        return this;
+    }
+
+    /**
+     * The password of the TLS keystore and of the key in it.
+     */
+    public String getTlsPassword() {
+        return tlsPassword;
+    }
+
+    public ChatServerConfig setTlsPassword(String tlsPassword) {
+        this.tlsPassword = tlsPassword;
+        return this;
+    }
+
+    /**
+     * The port other cluster nodes connect to, or 0 if the server runs on its
+     * own. See {@link ClusterNode}.
+     */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public ChatServerConfig setClusterPort(int clusterPort) {
+        if (clusterPort < 0 || clusterPort > 65535) {
+            throw new IllegalArgumentException("cluster-port must be between 0 and 65535");
+        }
+        this.clusterPort = clusterPort;
+        return this;
+    }
+
+    /**
+     * The cluster ports of the other nodes, only used when a cluster port is set.
+     */
+    public List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    public ChatServerConfig setPeers(List<InetSocketAddress> peers) {
+        this.peers = Collections.unmodifiableList(new ArrayList<>(peers));
+        return this;
+    }
+}
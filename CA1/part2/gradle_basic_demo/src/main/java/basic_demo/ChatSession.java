@@ -0,0 +1,210 @@
+package basic_demo;
+
+/**
+ * One connected client as the chat protocol sees it, regardless of whether its
+ * socket is serviced by a blocking handler or by an event loop. A session owns
+ * the bounded queue of frames waiting to be written to the client; the
+ * transport that created it is responsible for draining that queue.
+ */
+abstract class ChatSession {
+
+    private final OutboundQueue outbound;
+
+    // Set once the server has accepted the screen name, null before that.
+    private volatile String name;
+
+    // The room the client talks in, null until the name has been accepted.
+    private volatile ChatRoom room;
+
+    // Switched to BINARY by the transport if the client asks for it.
+    private volatile WireProtocol protocol = WireProtocol.TEXT;
+
+    // The name being claimed across the cluster, null when no claim is in flight.
+    private volatile String pendingName;
+
+    // Set by the server once the connection has ended, guarded by this.
+    private boolean ended;
+
+    // Limits on what the client sends, null when unlimited. Only used by the
+    // thread reading from the client, like the throttled flag.
+    private TokenBucket messageLimit;
+    private TokenBucket byteLimit;
+    private boolean throttled;
+
+    // Set when the client asked for ROSTER and PRESENCE frames instead of join and leave messages.
+    private volatile boolean followsPresence;
+
+    // When the client last sent anything, by System.nanoTime().
+    private volatile long lastActivity = System.nanoTime();
+
+    ChatSession(int outboundQueueCapacity, OverflowPolicy overflowPolicy) {
+        this.outbound = new OutboundQueue(outboundQueueCapacity, overflowPolicy, this::close);
+    }
+
+    /**
+     * Returns the accepted screen name, or null while the client is still
+     * choosing one.
+     */
+    String name() {
+        return name;
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+
+    ChatRoom room() {
+        return room;
+    }
+
+    void setRoom(ChatRoom room) {
+        this.room = room;
+    }
+
+    /**
+     * Returns the protocol frames for this client must be encoded with.
+     */
+    WireProtocol protocol() {
+        return protocol;
+    }
+
+    void setProtocol(WireProtocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Returns true if the client follows the roster of its room through
+     * ROSTER and PRESENCE frames, see {@link Presence}, and so gets no join
+     * and leave messages.
+     */
+    boolean followsPresence() {
+        return followsPresence;
+    }
+
+    void setFollowsPresence(boolean followsPresence) {
+        this.followsPresence = followsPresence;
+    }
+
+    String pendingName() {
+        return pendingName;
+    }
+
+    void setPendingName(String pendingName) {
+        this.pendingName = pendingName;
+    }
+
+    /**
+     * Returns true once the server has seen the connection end. Callers hold
+     * the session's monitor, so a name granted late can't be handed to a
+     * client that is already gone.
+     */
+    boolean hasEnded() {
+        return ended;
+    }
+
+    void setEnded() {
+        ended = true;
+    }
+
+    long lastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Records that the client has just sent something.
+     */
+    void touch(long now) {
+        lastActivity = now;
+    }
+
+    void limitRate(TokenBucket messageLimit, TokenBucket byteLimit) {
+        this.messageLimit = messageLimit;
+        this.byteLimit = byteLimit;
+    }
+
+    /**
+     * Checks a line the client sent against its rate limits.
+     *
+     * @return true if the line may be handled, false if it must be dropped
+     */
+    boolean admit(int length) {
+        if (messageLimit == null && byteLimit == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        // Both are checked before either is charged, so a refused line costs nothing.
+        if ((messageLimit != null && !messageLimit.canTake(1, now))
+                || (byteLimit != null && !byteLimit.canTake(length, now))) {
+            return false;
+        }
+        if (messageLimit != null) {
+            messageLimit.take(1);
+        }
+        if (byteLimit != null) {
+            byteLimit.take(length);
+        }
+        throttled = false;
+        return true;
+    }
+
+    /**
+     * Marks the client as throttled after a dropped line.
+     *
+     * @return true for the first line dropped since the last one let through
+     */
+    boolean throttle() {
+        boolean first = !throttled;
+        throttled = true;
+        return first;
+    }
+
+    OutboundQueue outbound() {
+        return outbound;
+    }
+
+    /**
+     * Queues a frame for the client. Safe to call from any thread.
+     *
+     * @return false if the frame was dropped because the session is closed or
+     *         is being disconnected for not keeping up
+     */
+    boolean deliver(Frame frame) {
+        if (followsPresence && frame.announcesPresence()) {
+            // Told with a PRESENCE frame instead.
+            return true;
+        }
+        if (!outbound.offer(frame)) {
+            return false;
+        }
+        frameQueued();
+        return true;
+    }
+
+    /**
+     * Called after a frame was queued, for transports that need to be woken up
+     * to write it.
+     */
+    void frameQueued() {
+    }
+
+    /**
+     * Has the transport write what is already queued for the client and a last
+     * frame, and then close its side of the connection, so the client reads
+     * everything up to the end of the stream. Frames queued after this are
+     * dropped. A client whose queue has no room left is disconnected right
+     * away instead, since it is not keeping up anyway.
+     */
+    void finish(Frame last) {
+        if (outbound.finish(last)) {
+            frameQueued();
+        } else {
+            close();
+        }
+    }
+
+    /**
+     * Disconnects the client. Safe to call from any thread and more than once;
+     * the transport reports the end of the session back to the server.
+     */
+    abstract void close();
+}
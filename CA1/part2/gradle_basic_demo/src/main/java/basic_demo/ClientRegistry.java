@@ -0,0 +1,64 @@
+package basic_demo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The named clients of one {@link ChatServer}. Screen names are claimed
+ * atomically through a concurrent map, so two clients can never end up with the
+ * same name and registering does not serialize on a shared monitor.
+ *
+ * Iterating all clients goes through a {@link SessionSet} snapshot, so it
+ * neither locks nor risks a {@link java.util.ConcurrentModificationException}.
+ */
+final class ClientRegistry {
+
+    private final ConcurrentMap<String, ChatSession> sessionsByName = new ConcurrentHashMap<>();
+    private final SessionSet sessions = new SessionSet();
+
+    /**
+     * Claims a screen name for a session and adds the session to the snapshot.
+     *
+     * @return false if the name is already taken
+     */
+    boolean claim(String name, ChatSession session) {
+        if (sessionsByName.putIfAbsent(name, session) != null) {
+            return false;
+        }
+        sessions.add(session);
+        return true;
+    }
+
+    /**
+     * Frees the name held by a session and removes it from the snapshot. Does
+     * nothing if the name belongs to another session.
+     *
+     * @return true if the session held the name
+     */
+    boolean release(String name, ChatSession session) {
+        if (!sessionsByName.remove(name, session)) {
+            return false;
+        }
+        sessions.remove(session);
+        return true;
+    }
+
+    /**
+     * Returns the session holding a screen name, or null.
+     */
+    ChatSession lookup(String name) {
+        return sessionsByName.get(name);
+    }
+
+    /**
+     * Returns the sessions registered at the time of the call. The array is
+     * shared and must not be modified.
+     */
+    ChatSession[] sessions() {
+        return sessions.snapshot();
+    }
+
+    int size() {
+        return sessions.size();
+    }
+}
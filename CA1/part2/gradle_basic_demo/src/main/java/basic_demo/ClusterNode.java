@@ -0,0 +1,445 @@
+package basic_demo;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Connects a {@link ChatServer} to the other servers of a cluster, so clients
+ * on different servers can talk to each other. Every node listens on a cluster
+ * port and dials every configured peer; the links it dialed carry what this
+ * node has to say, the links it accepted carry what its peers have to say.
+ *
+ * Nodes speak a small line protocol over those links:
+ * <pre>
+ * ROOM &lt;room&gt; &lt;text&gt;   an announcement for the members of a room
+ * CHAT &lt;room&gt; &lt;text&gt;   a chat message for a room, also kept in its history
+ * CLAIM &lt;id&gt; &lt;name&gt;    may a local client take this screen name?
+ * GRANT &lt;id&gt;, DENY &lt;id&gt;  the answer to a claim
+ * HOLD &lt;name&gt;          a name in use on the sender, sent after (re)connecting
+ * RELEASE &lt;name&gt;       a name the sender no longer uses
+ * </pre>
+ *
+ * Text relayed in ROOM and CHAT may span several lines when it comes from a
+ * binary client, so backslashes, CRs and LFs in it are escaped as "\\", "\r"
+ * and "\n". Otherwise a client could end the line early and have the rest
+ * read as a cluster message of its own, like a RELEASE of someone else's name.
+ *
+ * A screen name is only accepted once every reachable peer granted it, so names
+ * stay unique across the cluster. Two nodes claiming the same name at the same
+ * time deny each other and both clients are asked for another name. Peers that
+ * cannot be reached are not asked; they forget the names of a node when their
+ * link to it breaks and learn them again from its HOLD messages on reconnect.
+ */
+final class ClusterNode {
+
+    // How long a claim waits for all peers to answer before the name is refused.
+    static final long CLAIM_TIMEOUT_MILLIS = 2000;
+
+    // Pause between attempts to reach a peer that is down.
+    private static final long RECONNECT_DELAY_MILLIS = 500;
+
+    // Lines that may wait for a slow peer before the link to it is dropped.
+    private static final int LINK_QUEUE_CAPACITY = 4096;
+
+    private final static Logger LOGGER = LogManager.getLogger(ClusterNode.class);
+
+    private final ChatServer server;
+    private final int port;
+    private final List<InetSocketAddress> peers;
+
+    // Links this node dialed, at most one per peer; relays and claims go out here.
+    private final Set<PeerLink> outbound = ConcurrentHashMap.newKeySet();
+
+    // Every open link, closed on shutdown.
+    private final Set<PeerLink> links = ConcurrentHashMap.newKeySet();
+
+    // Names used or being claimed on other nodes, with the link their node talks to us on.
+    private final ConcurrentMap<String, PeerLink> remoteNames = new ConcurrentHashMap<>();
+
+    // Claims of this node that still wait for answers, by id.
+    private final ConcurrentMap<Long, Claim> claims = new ConcurrentHashMap<>();
+    private final AtomicLong claimIds = new AtomicLong();
+
+    private final List<Thread> threads = new ArrayList<>();
+    private ServerSocket listener;
+    private volatile boolean stopped;
+
+    ClusterNode(ChatServer server, ChatServerConfig config) {
+        this.server = server;
+        this.port = config.getClusterPort();
+        this.peers = config.getPeers();
+    }
+
+    /**
+     * Binds the cluster port and starts dialing the peers in the background.
+     */
+    synchronized void start() throws IOException {
+        listener = new ServerSocket(port);
+        threads.add(startDaemon(this::acceptLinks, "Cluster Acceptor"));
+        for (InetSocketAddress peer : peers) {
+            threads.add(startDaemon(() -> dial(peer), "Cluster Dialer " + peer));
+        }
+        LOGGER.info("Cluster node listening on port {} with peers {}", port, peers);
+    }
+
+    synchronized void shutdown() {
+        stopped = true;
+        if (listener != null) {
+            try { listener.close(); } catch (IOException e) {}
+        }
+        for (PeerLink link : links) {
+            link.close();
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of peers this node can currently send to.
+     */
+    int connectedPeerCount() {
+        return outbound.size();
+    }
+
+    /**
+     * Asks every reachable peer whether a local client may use a screen name.
+     * The caller must already hold the name locally, which is what makes a
+     * claim arriving from a peer at the same time see it.
+     *
+     * @return a future completed with true once all peers granted the name, or
+     *         with false if one denied it or did not answer in time
+     */
+    CompletableFuture<Boolean> claim(String name) {
+        if (remoteNames.containsKey(name)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        Set<PeerLink> targets = ConcurrentHashMap.newKeySet();
+        targets.addAll(outbound);
+        if (targets.isEmpty()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        long id = claimIds.incrementAndGet();
+        Claim claim = new Claim(targets);
+        claims.put(id, claim);
+        claim.result.whenComplete((granted, failure) -> {
+            claims.remove(id);
+            if (!Boolean.TRUE.equals(granted)) {
+                // Peers that granted the name hold it for us until told otherwise.
+                release(name);
+            }
+        });
+        claim.result.completeOnTimeout(false, CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        for (PeerLink link : targets) {
+            link.send("CLAIM " + id + " " + name);
+        }
+        return claim.result;
+    }
+
+    /**
+     * Tells every peer a name is free again.
+     */
+    void release(String name) {
+        sendToPeers("RELEASE " + name);
+    }
+
+    /**
+     * Passes a message for a room on to every peer, which delivers it to the
+     * members of its own room of that name.
+     *
+     * @param chat true for something a client said, which peers add to the
+     *             room's history, false for an announcement
+     */
+    void relay(String room, String text, boolean chat) {
+        sendToPeers((chat ? "CHAT " : "ROOM ") + room + " " + escape(text));
+    }
+
+    /**
+     * Escapes the text of a ROOM or CHAT message so it stays on one line.
+     */
+    static String escape(String text) {
+        if (text.indexOf('\\') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            return text;
+        }
+        StringBuilder escaped = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Restores text escaped by {@link #escape}.
+     */
+    static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder unescaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != '\\' || i + 1 == text.length()) {
+                unescaped.append(c);
+                continue;
+            }
+            char next = text.charAt(++i);
+            unescaped.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+        }
+        return unescaped.toString();
+    }
+
+    private void sendToPeers(String line) {
+        for (PeerLink link : outbound) {
+            link.send(line);
+        }
+    }
+
+    private void acceptLinks() {
+        try {
+            while (!stopped) {
+                PeerLink link = new PeerLink(listener.accept());
+                startDaemon(link::run, "Cluster Link " + link);
+            }
+        } catch (IOException e) {
+            if (!stopped) {
+                LOGGER.error("Cluster listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Keeps a link to one peer open, reconnecting whenever it breaks.
+     */
+    private void dial(InetSocketAddress peer) {
+        while (!stopped) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(peer.getHostString(), peer.getPort()), 1000);
+                PeerLink link = new PeerLink(socket);
+                LOGGER.info("Connected to cluster peer {}", peer);
+                outbound.add(link);
+                if (stopped) {
+                    link.close();
+                    return;
+                }
+                for (String name : server.localNames()) {
+                    link.send("HOLD " + name);
+                }
+                link.run();
+                LOGGER.info("Lost cluster peer {}", peer);
+            } catch (IOException e) {
+                try { socket.close(); } catch (IOException ignored) {}
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void lineReceived(PeerLink link, String line) {
+        int space = line.indexOf(' ');
+        String type = space < 0 ? line : line.substring(0, space);
+        String rest = space < 0 ? "" : line.substring(space + 1);
+        switch (type) {
+            case "ROOM":
+            case "CHAT": {
+                int split = rest.indexOf(' ');
+                if (split > 0) {
+                    server.relayed(rest.substring(0, split), unescape(rest.substring(split + 1)), type.equals("CHAT"));
+                }
+                break;
+            }
+            case "CLAIM": {
+                int split = rest.indexOf(' ');
+                String id = rest.substring(0, split);
+                link.send((reserve(rest.substring(split + 1), link) ? "GRANT " : "DENY ") + id);
+                break;
+            }
+            case "GRANT":
+            case "DENY": {
+                Claim claim = claims.get(Long.parseLong(rest));
+                if (claim != null) {
+                    claim.answered(link, type.equals("GRANT"));
+                }
+                break;
+            }
+            case "HOLD":
+                if (server.isLocalName(rest)) {
+                    LOGGER.warn("Screen name {} is in use on this node and on peer {}", rest, link);
+                }
+                remoteNames.put(rest, link);
+                break;
+            case "RELEASE":
+                remoteNames.remove(rest, link);
+                break;
+            default:
+                LOGGER.warn("Ignoring unknown cluster message from {}: {}", link, type);
+        }
+    }
+
+    /**
+     * Reserves a name for a client of the peer on the other end of a link,
+     * unless a local client or another peer has it. Reserving before looking at
+     * the local clients mirrors the order of a local claim, so of two claims
+     * racing for a name at least one sees the other.
+     */
+    private boolean reserve(String name, PeerLink link) {
+        PeerLink holder = remoteNames.putIfAbsent(name, link);
+        if (holder != null && holder != link) {
+            return false;
+        }
+        if (server.isLocalName(name)) {
+            if (holder == null) {
+                remoteNames.remove(name, link);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void linkClosed(PeerLink link) {
+        outbound.remove(link);
+        remoteNames.values().removeIf(holder -> holder == link);
+        // A peer that went away no longer has a say in pending claims.
+        for (Claim claim : claims.values()) {
+            claim.answered(link, true);
+        }
+    }
+
+    private static Thread startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * A claim waiting for the peers it was sent to.
+     */
+    private static final class Claim {
+        final Set<PeerLink> waitingFor;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Claim(Set<PeerLink> waitingFor) {
+            this.waitingFor = waitingFor;
+        }
+
+        void answered(PeerLink link, boolean granted) {
+            if (!granted) {
+                result.complete(false);
+            } else if (waitingFor.remove(link) && waitingFor.isEmpty()) {
+                result.complete(true);
+            }
+        }
+    }
+
+    /**
+     * One TCP connection to another node. Lines are read on the thread calling
+     * {@link #run()} and written by a thread of its own from a bounded queue, so
+     * relaying a message never waits for the network.
+     */
+    private final class PeerLink {
+        private final Socket socket;
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        private final Thread writer;
+
+        PeerLink(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.writer = new Thread(this::writeQueued, "Cluster Writer " + this);
+            writer.setDaemon(true);
+            links.add(this);
+            writer.start();
+        }
+
+        void send(String line) {
+            if (!queue.offer(line)) {
+                LOGGER.warn("Cluster peer {} is not keeping up, dropping the link", this);
+                close();
+            }
+        }
+
+        void run() {
+            try {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lineReceived(this, line);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!stopped && !socket.isClosed()) {
+                    LOGGER.warn("Cluster link {} failed", this, e);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void writeQueued() {
+            try {
+                Writer out = new BufferedWriter(
+                        new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                while (true) {
+                    String line = queue.take();
+                    do {
+                        out.write(line);
+                        out.write('\n');
+                    } while ((line = queue.poll()) != null);
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (links.remove(this)) {
+                try { socket.close(); } catch (IOException e) {}
+                writer.interrupt();
+                linkClosed(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return socket.getRemoteSocketAddress().toString();
+        }
+    }
+}
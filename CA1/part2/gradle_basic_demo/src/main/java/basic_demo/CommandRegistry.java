@@ -0,0 +1,105 @@
+package basic_demo;
+
+import java.util.Arrays;
+
+/**
+ * The slash commands a named client can send, like "/join team". A line is a
+ * command when it starts with '/'; the word after it names the command, in
+ * any case, and the rest of the line is its arguments.
+ *
+ * Every line a client sends passes through {@link #dispatch}, so it is kept
+ * cheap: an ordinary message is recognized by its first character alone, and
+ * finding a command compares the word in place against the registered names
+ * instead of lowercasing or splitting the line. Only the arguments of a
+ * command that is run become a new string.
+ *
+ * Commands are registered while the server is being set up and only looked
+ * up after that.
+ */
+final class CommandRegistry {
+
+    /**
+     * What a command does when a client sends it.
+     */
+    interface Command {
+        /**
+         * @param arguments the rest of the line after the command, trimmed,
+         *                  possibly empty
+         */
+        void run(ChatSession session, String arguments);
+    }
+
+    private Entry[] entries = new Entry[0];
+
+    /**
+     * Adds a command.
+     *
+     * @param name the command without its slash, in lower case
+     * @param usage what to tell a client about the command in /help
+     * @throws IllegalArgumentException if a command of that name exists
+     */
+    CommandRegistry register(String name, String usage, Command command) {
+        if (find(name, 0, name.length()) != null) {
+            throw new IllegalArgumentException("Command /" + name + " is already registered");
+        }
+        entries = Arrays.copyOf(entries, entries.length + 1);
+        entries[entries.length - 1] = new Entry(name, usage, command);
+        return this;
+    }
+
+    /**
+     * Runs the command a line holds, if it holds one. A client that sends an
+     * unknown command is told so and pointed to /help.
+     *
+     * @return false if the line is not a command
+     */
+    boolean dispatch(ChatSession session, String input) {
+        if (input.isEmpty() || input.charAt(0) != '/') {
+            return false;
+        }
+        int end = input.indexOf(' ');
+        if (end < 0) {
+            end = input.length();
+        }
+        Entry entry = find(input, 1, end - 1);
+        if (entry == null) {
+            session.deliver(Frame.message("Unknown command " + input.substring(0, end) + ", try /help"));
+            return true;
+        }
+        entry.command.run(session, end < input.length() ? input.substring(end + 1).trim() : "");
+        return true;
+    }
+
+    /**
+     * Returns the usage of every command, one per line, in the order they
+     * were registered.
+     */
+    String[] usages() {
+        String[] usages = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            usages[i] = entries[i].usage;
+        }
+        return usages;
+    }
+
+    private Entry find(String text, int offset, int length) {
+        for (Entry entry : entries) {
+            if (entry.name.length() == length && text.regionMatches(true, offset, entry.name, 0, length)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static final class Entry {
+        final String name;
+        final String usage;
+        final Command command;
+
+        Entry(String name, String usage, Command command) {
+            this.name = name;
+            this.usage = usage;
+            this.command = command;
+        }
+    }
+}
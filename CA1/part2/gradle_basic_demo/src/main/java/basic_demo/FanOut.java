@@ -0,0 +1,110 @@
+package basic_demo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queues a frame for the members of a room on several threads at once, so
+ * the time a broadcast to a very large room takes shrinks with the number of
+ * cores rather than growing with the number of members. The members are split
+ * into shards; the sending thread queues the first shard itself while a fixed
+ * pool of workers takes the others.
+ *
+ * A broadcast returns only once every shard is done, just like a broadcast on
+ * the sending thread alone. Frames a thread queues for a client therefore
+ * still reach it in the order the thread sent them, whether broadcast or
+ * delivered directly. Rooms too small to be worth splitting are handled on
+ * the sending thread without touching the pool.
+ */
+final class FanOut {
+
+    // Fewest members a worker is handed; smaller rooms are not split.
+    static final int MIN_SHARD_SIZE = 512;
+
+    private final int threads;
+    private final int minShardSize;
+    // The sending thread is one of the threads, so there is one worker fewer.
+    // The pool only starts a thread once it is given a shard.
+    private final ExecutorService workers;
+
+    FanOut(int threads) {
+        this(threads, MIN_SHARD_SIZE);
+    }
+
+    FanOut(int threads, int minShardSize) {
+        if (threads < 2) {
+            throw new IllegalArgumentException("a fan-out needs at least 2 threads");
+        }
+        this.threads = threads;
+        this.minShardSize = minShardSize;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads - 1, runnable -> {
+            Thread t = new Thread(runnable, "Chat Fan-out " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void stop() {
+        workers.shutdown();
+    }
+
+    /**
+     * Queues a frame for every member except one and waits until all of them
+     * have it.
+     *
+     * @param except a member that should not get the frame, or null
+     */
+    void broadcast(ChatSession[] members, Frame frame, ChatSession except) {
+        int shards = Math.min(threads, members.length / minShardSize);
+        if (shards < 2) {
+            deliver(members, 0, members.length, frame, except);
+            return;
+        }
+        CountDownLatch done = new CountDownLatch(shards - 1);
+        int shardSize = (members.length + shards - 1) / shards;
+        for (int shard = 1; shard < shards; shard++) {
+            int from = shard * shardSize;
+            int to = Math.min(members.length, from + shardSize);
+            try {
+                workers.execute(() -> {
+                    try {
+                        deliver(members, from, to, frame, except);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down: nobody else is left to do it.
+                deliver(members, from, to, frame, except);
+                done.countDown();
+            }
+        }
+        deliver(members, 0, Math.min(members.length, shardSize), frame, except);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // Returning early would let this thread's next frame overtake the shards.
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void deliver(ChatSession[] members, int from, int to, Frame frame, ChatSession except) {
+        for (int i = from; i < to; i++) {
+            ChatSession member = members[i];
+            if (member != except) {
+                member.deliver(frame);
+            }
+        }
+    }
+}
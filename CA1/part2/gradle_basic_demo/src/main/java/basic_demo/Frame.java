@@ -0,0 +1,185 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One line of the chat protocol sent by the server, e.g. "MESSAGE bob: hi".
+ * The line is formatted and UTF-8 encoded exactly once, when the frame is
+ * created, so a broadcast to N clients hands the same bytes to all of them
+ * instead of building and encoding the string N times. Frames are immutable
+ * and safe to share between threads.
+ *
+ * The {@link WireProtocol#BINARY} encoding is only made the first time a
+ * binary client needs the frame, and then shared the same way.
+ *
+ * Binary clients may send text spanning several lines. Such text keeps its
+ * line breaks in binary frames, but in the text line every CR and LF becomes
+ * a space, so it can never end the line early and pass the rest off as a
+ * frame of its own, like a MESSAGE claiming to be from someone else.
+ *
+ * An argument longer than a binary payload may be, which a long message
+ * behind a long name can be, is cut to fit, so every frame can be sent to
+ * every client.
+ */
+final class Frame {
+
+    static final String SUBMITNAME = "SUBMITNAME";
+    static final String NAMEACCEPTED = "NAMEACCEPTED";
+    static final String MESSAGE = "MESSAGE";
+    // Asks a silent client whether it is still there; it answers with PONG.
+    static final String PING = "PING";
+    static final String PONG = "PONG";
+    // The members of a room, and who entered or left it, for clients following the roster.
+    static final String ROSTER = "ROSTER";
+    static final String PRESENCE = "PRESENCE";
+
+    // Sent over and over during the handshake, so it is encoded once for good.
+    private static final Frame SUBMIT_NAME = new Frame(SUBMITNAME, "");
+    private static final Frame PING_FRAME = new Frame(PING, "");
+
+    private final String command;
+    private final String argument;
+    // Set on the MESSAGE lines saying someone joined or left, see #announcesPresence().
+    private final boolean presence;
+    // Never handed out directly, only through read-only views.
+    private final byte[] encoded;
+    private final ByteBuffer bytes;
+    // Made on first use; racing threads at worst both encode it.
+    private volatile byte[] binary;
+
+    private Frame(String command, String argument) {
+        this(command, argument, false);
+    }
+
+    private Frame(String command, String argument, boolean presence) {
+        this.command = command;
+        this.argument = argument = fit(argument);
+        this.presence = presence;
+        String line = argument.isEmpty() ? command + "\n" : command + " " + oneLine(argument) + "\n";
+        this.encoded = line.getBytes(StandardCharsets.UTF_8);
+        this.bytes = ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+    }
+
+    /**
+     * Cuts text to at most {@link BinaryCodec#MAX_PAYLOAD_LENGTH} bytes of
+     * UTF-8, at a character boundary.
+     */
+    private static String fit(String text) {
+        // A char never takes more than 3 bytes.
+        if (text.length() * 3 <= BinaryCodec.MAX_PAYLOAD_LENGTH) {
+            return text;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= BinaryCodec.MAX_PAYLOAD_LENGTH) {
+            return text;
+        }
+        int end = BinaryCodec.MAX_PAYLOAD_LENGTH;
+        while ((bytes[end] & 0xC0) == 0x80) {
+            // Not the first byte of a character.
+            end--;
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private static String oneLine(String text) {
+        if (text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            return text;
+        }
+        return text.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    static Frame of(String command, String argument) {
+        return new Frame(command, argument);
+    }
+
+    static Frame submitName() {
+        return SUBMIT_NAME;
+    }
+
+    static Frame ping() {
+        return PING_FRAME;
+    }
+
+    static Frame nameAccepted(String name) {
+        return new Frame(NAMEACCEPTED, name);
+    }
+
+    static Frame message(String text) {
+        return new Frame(MESSAGE, text);
+    }
+
+    /**
+     * Returns a MESSAGE saying someone joined or left a room.
+     */
+    static Frame presenceMessage(String text) {
+        return new Frame(MESSAGE, text, true);
+    }
+
+    String command() {
+        return command;
+    }
+
+    String argument() {
+        return argument;
+    }
+
+    /**
+     * Returns true for a MESSAGE saying someone joined or left a room, which
+     * clients following the roster learn from PRESENCE frames instead.
+     */
+    boolean announcesPresence() {
+        return presence;
+    }
+
+    /**
+     * Returns a read-only view of the encoded line, including the trailing
+     * newline. Every call returns a new view with its own position, so each
+     * recipient can be written independently while the bytes are shared.
+     */
+    ByteBuffer buffer() {
+        return bytes.duplicate();
+    }
+
+    /**
+     * Returns a read-only view of the frame encoded for a protocol, like
+     * {@link #buffer()}.
+     */
+    ByteBuffer buffer(WireProtocol protocol) {
+        if (protocol == WireProtocol.TEXT) {
+            return bytes.duplicate();
+        }
+        return ByteBuffer.wrap(binary()).asReadOnlyBuffer();
+    }
+
+    private byte[] binary() {
+        byte[] encoding = binary;
+        if (encoding == null) {
+            encoding = BinaryCodec.encode(BinaryCodec.typeOf(command), argument);
+            binary = encoding;
+        }
+        return encoding;
+    }
+
+    /**
+     * The number of bytes the frame takes in a protocol, including the
+     * trailing newline of a text line.
+     */
+    int length(WireProtocol protocol) {
+        return protocol == WireProtocol.TEXT ? encoded.length : binary().length;
+    }
+
+    /**
+     * Writes the encoded frame to a stream, for connections that have no channel.
+     */
+    void writeTo(OutputStream out, WireProtocol protocol) throws IOException {
+        out.write(protocol == WireProtocol.TEXT ? encoded : binary());
+    }
+
+    @Override
+    public String toString() {
+        return argument.isEmpty() ? command : command + " " + argument;
+    }
+}
@@ -0,0 +1,90 @@
+package basic_demo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Disconnects clients that have gone silent, such as peers that vanished
+ * without closing their TCP connection. A client that has sent nothing for
+ * half the idle timeout gets a PING, which any client still there answers with
+ * PONG; a client that stays silent for the whole timeout is closed, which frees
+ * its name, its queue and, in the blocking modes, its threads.
+ *
+ * Sessions only record when they last heard from their client. A single
+ * thread keeps every session on a {@link TimerWheel} and looks at it when its
+ * next check is due, so activity never touches the wheel and there is no
+ * timer per connection.
+ */
+final class IdleReaper implements Runnable {
+
+    private final static Logger LOGGER = LogManager.getLogger(IdleReaper.class);
+
+    // Wheel turns per idle timeout; also how late a check may be, as a fraction of the timeout.
+    private static final int TICKS_PER_TIMEOUT = 16;
+
+    private final ServerMetrics metrics;
+    private final long timeoutNanos;
+    private final long tickNanos;
+    private final TimerWheel<ChatSession> wheel;
+    private volatile Thread thread;
+
+    IdleReaper(ServerMetrics metrics, long timeout, TimeUnit unit) {
+        this.metrics = metrics;
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.tickNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(10), timeoutNanos / TICKS_PER_TIMEOUT);
+        this.wheel = new TimerWheel<>(2 * TICKS_PER_TIMEOUT, tickNanos, System.nanoTime());
+    }
+
+    void start() {
+        thread = new Thread(this, "Chat Server Idle Reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        Thread thread = this.thread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Starts watching a freshly connected client.
+     */
+    void watch(ChatSession session) {
+        wheel.schedule(session, session.lastActivity() + timeoutNanos / 2);
+    }
+
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                TimeUnit.NANOSECONDS.sleep(tickNanos);
+                wheel.advance(System.nanoTime(), this::check);
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        }
+    }
+
+    private void check(ChatSession session) {
+        if (session.outbound().isClosed()) {
+            // Gone already, or leaving.
+            return;
+        }
+        long lastActivity = session.lastActivity();
+        long idle = System.nanoTime() - lastActivity;
+        if (idle >= timeoutNanos) {
+            LOGGER.info("Disconnecting {}, silent for {} ms", session.name() != null ? session.name() : "a client",
+                    TimeUnit.NANOSECONDS.toMillis(idle));
+            metrics.idleDisconnect();
+            session.close();
+        } else if (idle >= timeoutNanos / 2) {
+            session.deliver(Frame.ping());
+            wheel.schedule(session, lastActivity + timeoutNanos);
+        } else {
+            wheel.schedule(session, lastActivity + timeoutNanos / 2);
+        }
+    }
+}
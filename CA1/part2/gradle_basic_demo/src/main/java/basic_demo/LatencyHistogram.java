@@ -0,0 +1,85 @@
+package basic_demo;
+
+/**
+ * Counts latencies in buckets whose width grows with the value, so a single
+ * small array covers nanoseconds to minutes while every recorded value is off
+ * by at most about 3%. Recording is a couple of shifts and an increment, cheap
+ * enough for every message a load test receives. Not thread-safe.
+ */
+final class LatencyHistogram {
+
+    // Values below this get a bucket each; every power of two above it is split into half as many.
+    private static final int LINEAR_BUCKETS = 64;
+    private static final int SUB_BUCKETS = LINEAR_BUCKETS / 2;
+    private static final int LINEAR_BITS = 6;
+
+    private final long[] counts = new long[(64 - LINEAR_BITS) * SUB_BUCKETS + LINEAR_BUCKETS];
+    private long count;
+    private long max;
+    private long sum;
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    long count() {
+        return count;
+    }
+
+    long max() {
+        return max;
+    }
+
+    long sum() {
+        return sum;
+    }
+
+    double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded values
+     * fall, e.g. 0.99 for the 99th percentile, or 0 if nothing was recorded.
+     * The result is the upper end of the bucket the percentile falls in, and
+     * never more than the largest value recorded.
+     */
+    long percentile(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - (LINEAR_BITS - 1);
+        return (exponent - (LINEAR_BITS - 1)) * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long highestValueIn(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
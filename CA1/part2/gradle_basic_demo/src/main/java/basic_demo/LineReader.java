@@ -0,0 +1,120 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads UTF-8 lines from a stream for the blocking handlers, as a cheaper and
+ * safer replacement for {@link java.util.Scanner}. Lines end with "\n" or
+ * "\r\n". A line that lies within one read of the stream is decoded straight
+ * out of the read buffer; only a line spread over several reads is first
+ * gathered in a second buffer. Both buffers are reused for every line, so the
+ * only allocation per line is the string itself.
+ *
+ * Lines are bounded: a client that sends more than the maximum without a
+ * newline gets a {@link ProtocolException} instead of filling the heap.
+ */
+final class LineReader {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private final int maxLineLength;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    // Holds the start of a line that did not end within the last read.
+    private byte[] line = new byte[256];
+    private int lineLength;
+
+    LineReader(InputStream in, int maxLineLength) {
+        this(in, maxLineLength, BUFFER_SIZE);
+    }
+
+    LineReader(InputStream in, int maxLineLength, int bufferSize) {
+        this.in = in;
+        this.maxLineLength = maxLineLength;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Returns the next line without its terminator, or null at the end of the
+     * stream. Text after the last newline is returned as a final line.
+     *
+     * @throws ProtocolException if the line is longer than the maximum
+     */
+    String readLine() throws IOException {
+        lineLength = 0;
+        while (true) {
+            if (position == limit) {
+                int n = in.read(buffer);
+                if (n < 0) {
+                    return lineLength == 0 ? null : decode(line, lineLength);
+                }
+                position = 0;
+                limit = n;
+            }
+            int start = position;
+            int newline = indexOfNewline(start);
+            if (newline < 0) {
+                append(start, limit);
+                position = limit;
+                continue;
+            }
+            position = newline + 1;
+            if (lineLength == 0) {
+                return decode(start, newline);
+            }
+            append(start, newline);
+            return decode(line, lineLength);
+        }
+    }
+
+    private int indexOfNewline(int from) {
+        for (int i = from; i < limit; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void append(int from, int to) throws ProtocolException {
+        int length = to - from;
+        if (lineLength + length > maxLineLength + 1) {
+            throw tooLong();
+        }
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.max(lineLength + length, line.length * 2));
+        }
+        System.arraycopy(buffer, from, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private String decode(int from, int to) throws ProtocolException {
+        if (to > from && buffer[to - 1] == '\r') {
+            to--;
+        }
+        if (to - from > maxLineLength) {
+            throw tooLong();
+        }
+        return new String(buffer, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private String decode(byte[] bytes, int length) throws ProtocolException {
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        if (length > maxLineLength) {
+            throw tooLong();
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private ProtocolException tooLong() {
+        return new ProtocolException("Line longer than " + maxLineLength + " bytes");
+    }
+}
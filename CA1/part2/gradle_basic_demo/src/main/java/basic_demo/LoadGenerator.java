@@ -0,0 +1,338 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A headless client that puts load on a {@link ChatServer}. It opens a number
+ * of connections, picks a screen name for each, and then sends chat messages
+ * at a fixed total rate, spread round-robin over the connections. Every
+ * message carries the time it was meant to be sent, so each client that
+ * receives it records the end-to-end latency. Measuring from the intended
+ * rather than the actual send time keeps a stalled server from hiding its own
+ * delays.
+ *
+ * All connections are read by one selector thread and written by the thread
+ * calling {@link #run()}, so thousands of connections cost two threads.
+ */
+public class LoadGenerator {
+
+    // Marks the messages sent by this run, followed by the intended send time. The
+    // run's own id keeps messages of earlier runs, replayed from a room's history,
+    // out of the latencies: their send times come from another clock.
+    private final String marker = "LOAD " + Long.toHexString(ThreadLocalRandom.current().nextLong()) + " ";
+
+    // How a marked message shows up after the sender's name in a MESSAGE line.
+    private final byte[] receivedMarker = (": " + marker).getBytes(StandardCharsets.UTF_8);
+
+    private final String host;
+    private final int port;
+    private int clients = 100;
+    private int rate = 100;
+    private int durationSeconds = 10;
+    private int messageSize = 64;
+    private String namePrefix = "load";
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private Selector selector;
+    private CountDownLatch accepted;
+    private volatile boolean stopped;
+
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Number of connections to open.
+     */
+    public LoadGenerator setClients(int clients) {
+        if (clients < 1) {
+            throw new IllegalArgumentException("clients must be positive");
+        }
+        this.clients = clients;
+        return this;
+    }
+
+    /**
+     * Messages sent per second by all connections together.
+     */
+    public LoadGenerator setRate(int rate) {
+        if (rate < 1) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        this.rate = rate;
+        return this;
+    }
+
+    public LoadGenerator setDurationSeconds(int durationSeconds) {
+        if (durationSeconds < 1) {
+            throw new IllegalArgumentException("duration must be positive");
+        }
+        this.durationSeconds = durationSeconds;
+        return this;
+    }
+
+    /**
+     * Approximate length of every message in bytes, padded as needed.
+     */
+    public LoadGenerator setMessageSize(int messageSize) {
+        if (messageSize < 0 || messageSize > ChatServer.MAX_LINE_LENGTH / 2) {
+            throw new IllegalArgumentException("message-size must be between 0 and " + ChatServer.MAX_LINE_LENGTH / 2);
+        }
+        this.messageSize = messageSize;
+        return this;
+    }
+
+    /**
+     * Screen names are this prefix followed by a dash and the connection number.
+     */
+    public LoadGenerator setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+        return this;
+    }
+
+    /**
+     * Connects, runs the load for the configured duration, waits a moment for
+     * messages still on their way and disconnects again.
+     */
+    public Report run() throws IOException, InterruptedException {
+        selector = Selector.open();
+        accepted = new CountDownLatch(clients);
+        List<Connection> connections = new ArrayList<>(clients);
+        Thread reader = new Thread(this::readAll, "Load Generator Reader");
+        reader.setDaemon(true);
+        long connectStart = System.nanoTime();
+        try {
+            for (int i = 0; i < clients; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                channel.configureBlocking(false);
+                Connection connection = new Connection(channel, namePrefix + "-" + i);
+                connections.add(connection);
+                channel.register(selector, SelectionKey.OP_READ, connection);
+            }
+            reader.start();
+            if (!accepted.await(30 + clients / 100, TimeUnit.SECONDS)) {
+                throw new IOException((clients - accepted.getCount()) + " of " + clients
+                        + " clients got a screen name in time");
+            }
+            long connectNanos = System.nanoTime() - connectStart;
+
+            String padding = messageSize > 0 ? " " + "x".repeat(messageSize) : "";
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+            long next = start;
+            long sent = 0;
+            while (next < end) {
+                LockSupport.parkNanos(next - System.nanoTime());
+                Connection connection = connections.get((int) (sent % clients));
+                connection.send(marker + next + padding);
+                sent++;
+                next += interval;
+            }
+            long sendNanos = System.nanoTime() - start;
+            // Give the last messages time to reach everybody before counting.
+            Thread.sleep(2000);
+            stopped = true;
+            selector.wakeup();
+            reader.join();
+            return new Report(clients, sent, sendNanos, connectNanos, latencies);
+        } finally {
+            stopped = true;
+            selector.close();
+            for (Connection connection : connections) {
+                try { connection.channel.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    private void readAll() {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (!stopped) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    buffer.clear();
+                    int n = connection.channel.read(buffer);
+                    if (n < 0) {
+                        key.cancel();
+                        continue;
+                    }
+                    buffer.flip();
+                    connection.received(buffer);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!stopped) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * One simulated client.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final String name;
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private int nameAttempts;
+
+        Connection(SocketChannel channel, String name) {
+            this.channel = channel;
+            this.name = name;
+        }
+
+        /**
+         * Writes a line, spinning while the socket buffer is full. Called by the
+         * reader thread during the handshake and by the sender after that.
+         */
+        synchronized void send(String text) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                if (channel.write(bytes) == 0) {
+                    Thread.yield();
+                }
+            }
+        }
+
+        void received(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                byte b = bytes.get();
+                if (b != '\n') {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = b;
+                    continue;
+                }
+                int length = lineLength;
+                lineLength = 0;
+                lineReceived(length);
+            }
+        }
+
+        /**
+         * Handles a complete line. Timed messages, which are nearly all of them,
+         * are parsed from the bytes without making a string, so the reader
+         * thread keeps up with the server instead of adding to the latency.
+         */
+        private void lineReceived(int length) throws IOException {
+            int timed = indexOf(receivedMarker, length);
+            if (timed >= 0) {
+                long sentAt = 0;
+                for (int i = timed + receivedMarker.length; i < length && line[i] >= '0' && line[i] <= '9'; i++) {
+                    sentAt = sentAt * 10 + (line[i] - '0');
+                }
+                latencies.record(System.nanoTime() - sentAt);
+                return;
+            }
+            String text = new String(line, 0, length, StandardCharsets.UTF_8);
+            if (text.startsWith(Frame.SUBMITNAME)) {
+                // Left over clients of an earlier run may still hold the plain name.
+                send(nameAttempts++ == 0 ? name : name + "-" + nameAttempts);
+            } else if (text.startsWith(Frame.NAMEACCEPTED)) {
+                accepted.countDown();
+            } else if (text.equals(Frame.PING)) {
+                send(Frame.PONG);
+            }
+        }
+
+        private int indexOf(byte[] pattern, int length) {
+            outer:
+            for (int i = 0; i + pattern.length <= length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (line[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * What a load test measured.
+     */
+    public static final class Report {
+        private final int clients;
+        private final long sent;
+        private final long received;
+        private final long sendNanos;
+        private final long connectNanos;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        Report(int clients, long sent, long sendNanos, long connectNanos, LatencyHistogram latencies) {
+            this.clients = clients;
+            this.sent = sent;
+            this.received = latencies.count();
+            this.sendNanos = sendNanos;
+            this.connectNanos = connectNanos;
+            this.p50 = latencies.percentile(0.50);
+            this.p99 = latencies.percentile(0.99);
+            this.p999 = latencies.percentile(0.999);
+            this.max = latencies.max();
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        /**
+         * Number of deliveries seen, each message counting once per client
+         * that received it.
+         */
+        public long getReceived() {
+            return received;
+        }
+
+        public long getP50Nanos() {
+            return p50;
+        }
+
+        public long getP99Nanos() {
+            return p99;
+        }
+
+        public long getP999Nanos() {
+            return p999;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = sendNanos / 1e9;
+            return String.format("clients:    %d connected and named in %.1f ms%n"
+                            + "sent:       %d messages, %.0f msg/s%n"
+                            + "received:   %d deliveries, %.0f deliveries/s%n"
+                            + "latency:    p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms",
+                    clients, connectNanos / 1e6,
+                    sent, sent / seconds,
+                    received, received / seconds,
+                    p50 / 1e6, p99 / 1e6, p999 / 1e6, max / 1e6);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package basic_demo;
+
+/**
+ * Runs a {@link LoadGenerator} against a chat server and prints what it measured.
+ *
+ * Usage: LoadGeneratorApp &lt;host&gt; &lt;port&gt; [--clients=N] [--rate=messages per second]
+ *                         [--duration=seconds] [--message-size=bytes] [--name-prefix=text]
+ */
+public class LoadGeneratorApp {
+
+    public static void main(String[] args) throws Exception {
+
+        LoadGenerator generator;
+        try {
+            generator = fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadGeneratorApp <host> <port> [--clients=N] [--rate=N]"
+                    + " [--duration=seconds] [--message-size=bytes] [--name-prefix=text]");
+            return;
+        }
+
+        System.out.println("Running load test against " + args[0] + ":" + args[1] + "...");
+        System.out.println(generator.run());
+    }
+
+    private static LoadGenerator fromArgs(String[] args) {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("The server host and port are required");
+        }
+        LoadGenerator generator = new LoadGenerator(args[0], parseInt("port", args[1]));
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --option=value but got " + arg);
+            }
+            String option = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (option) {
+                case "clients":
+                    generator.setClients(parseInt(option, value));
+                    break;
+                case "rate":
+                    generator.setRate(parseInt(option, value));
+                    break;
+                case "duration":
+                    generator.setDurationSeconds(parseInt(option, value));
+                    break;
+                case "message-size":
+                    generator.setMessageSize(parseInt(option, value));
+                    break;
+                case "name-prefix":
+                    generator.setNamePrefix(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option --" + option);
+            }
+        }
+        return generator;
+    }
+
+    private static int parseInt(String option, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package basic_demo;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+/**
+ * Feeds the messages a {@link ChatClient} receives into its text area. The
+ * thread reading from the server only queues each line; the Swing event
+ * thread appends whatever has queued up at most a few dozen times a second,
+ * in one go, so a busy room costs one repaint per batch rather than one per
+ * message and the window stays responsive.
+ *
+ * Only the last lines are kept, in the text area and in the queue alike, so
+ * the client's memory stays flat however long it runs and however far the
+ * event thread falls behind.
+ */
+final class MessageFeed {
+
+    // Most batches appended per second.
+    static final int BATCHES_PER_SECOND = 30;
+
+    private final JTextArea area;
+    private final int maxLines;
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    // Set while a batch is on its way, so a burst starts the timer once.
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer timer;
+
+    MessageFeed(JTextArea area, int maxLines) {
+        if (maxLines < 1) {
+            throw new IllegalArgumentException("maxLines must be positive");
+        }
+        this.area = area;
+        this.maxLines = maxLines;
+        this.timer = new Timer(1000 / BATCHES_PER_SECOND, e -> flush());
+        this.timer.setRepeats(false);
+    }
+
+    /**
+     * Queues a line for the text area. Safe to call from any thread.
+     */
+    void add(String line) {
+        pending.add(line);
+        if (pendingCount.incrementAndGet() > maxLines && pending.poll() != null) {
+            // Would be trimmed as soon as it is shown.
+            pendingCount.decrementAndGet();
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(timer::restart);
+        }
+    }
+
+    /**
+     * Appends the queued lines and trims the oldest ones beyond the limit.
+     * Runs on the event thread.
+     */
+    void flush() {
+        scheduled.set(false);
+        StringBuilder batch = new StringBuilder();
+        String line;
+        while ((line = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            batch.append(line).append('\n');
+        }
+        if (batch.length() == 0) {
+            return;
+        }
+        area.append(batch.toString());
+        // The text ends with a newline, which leaves an empty last line.
+        int excess = area.getLineCount() - 1 - maxLines;
+        if (excess > 0) {
+            try {
+                area.replaceRange("", 0, area.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package basic_demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The most recent messages of a room, kept in a fixed ring of slots that is
+ * allocated once and overwritten oldest first. Every message gets the next
+ * sequence number and lands in the slot that number maps to.
+ *
+ * Neither adding nor reading takes a lock. A slot records the sequence of the
+ * message it holds, invalidated while the message is being replaced, so a
+ * reader that races with a writer notices and skips the slot rather than
+ * returning a message out of order. Frames are stored as they were broadcast,
+ * so replaying them reuses their encoded bytes.
+ */
+final class MessageHistory {
+
+    // Marks a slot whose frame is being replaced.
+    private static final long WRITING = -1;
+
+    private final int depth;
+    private final AtomicReferenceArray<Frame> frames;
+    private final AtomicLongArray sequences;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    MessageHistory(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be positive");
+        }
+        this.depth = depth;
+        this.frames = new AtomicReferenceArray<>(depth);
+        this.sequences = new AtomicLongArray(depth);
+        for (int i = 0; i < depth; i++) {
+            sequences.set(i, WRITING);
+        }
+    }
+
+    void add(Frame frame) {
+        long sequence = nextSequence.getAndIncrement();
+        int slot = (int) (sequence % depth);
+        sequences.set(slot, WRITING);
+        frames.set(slot, frame);
+        sequences.set(slot, sequence);
+    }
+
+    /**
+     * Returns up to the last depth messages, oldest first. Messages that are
+     * still being written or got overwritten while reading are left out.
+     */
+    List<Frame> recent() {
+        long end = nextSequence.get();
+        long start = Math.max(0, end - depth);
+        List<Frame> recent = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence % depth);
+            if (sequences.get(slot) != sequence) {
+                continue;
+            }
+            Frame frame = frames.get(slot);
+            if (sequences.get(slot) == sequence) {
+                recent.add(frame);
+            }
+        }
+        return recent;
+    }
+
+    int depth() {
+        return depth;
+    }
+}
@@ -0,0 +1,522 @@
+package basic_demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * An append-only log of everything said in the rooms of a {@link ChatServer},
+ * kept in a directory of fixed size segment files. Each message gets the next
+ * offset, counting from 0 for the first message ever logged.
+ *
+ * The segment taking appends is memory-mapped, so appending is a copy into
+ * memory and never waits for the disk. A background thread forces dirty data
+ * to disk every flush interval, which bounds what a crash can lose to that
+ * interval while a burst of messages costs a single fsync. The flusher forces
+ * without holding the log's lock, so appends carry on meanwhile.
+ *
+ * A full segment is sealed: appends move on to a fresh one, and the flusher
+ * later forces the sealed one, closes its files and drops its mappings, which
+ * the garbage collector then unmaps. Sealed segments are read through their
+ * files instead. With a retention limit the oldest segments are deleted once
+ * there are more than that.
+ *
+ * Creating and mapping a segment is left to the flusher as well: it keeps a
+ * spare one ready, so rolling over only renames the spare's files. Only when
+ * appends fill a segment before the flusher has replaced the last spare is
+ * the next one created on the spot.
+ *
+ * Each segment has an index file with the position of every message in it,
+ * so reading from an offset goes straight to the right place instead of
+ * scanning. Segment and index files are named after the offset of their first
+ * message. A record is a 4 byte length, an 8 byte timestamp, a kind byte and
+ * the room name and text as UTF-8, separated by a space. Room names have no
+ * spaces.
+ */
+final class MessageLog implements AutoCloseable {
+
+    // What a record holds, see Entry#isChat().
+    static final byte KIND_CHAT = 1;
+    static final byte KIND_ANNOUNCEMENT = 2;
+
+    // Length and timestamp in front of the kind byte.
+    private static final int RECORD_HEADER_LENGTH = 4 + 8 + 1;
+
+    // Size of one index entry, the position of a message in its segment.
+    private static final int INDEX_ENTRY_LENGTH = 4;
+
+    // Names of the spare segment's files until it takes appends; not seen by open().
+    private static final String SPARE_LOG = "spare.log.tmp";
+    private static final String SPARE_INDEX = "spare.idx.tmp";
+
+    private final static Logger LOGGER = LogManager.getLogger(MessageLog.class);
+
+    private final File directory;
+    private final int segmentSize;
+    private final long flushIntervalMillis;
+    private final int retainedSegments;
+
+    // All segments by the offset of their first message; the last one takes appends.
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long nextOffset;
+    private boolean dirty;
+    private boolean closed;
+    // Full segments the flusher still has to force and close.
+    private final List<Segment> sealed = new ArrayList<>();
+    // Segments past the retention limit the flusher still has to delete.
+    private final List<Segment> expired = new ArrayList<>();
+    // Created and mapped by the flusher, to take appends when the active segment is full.
+    private Segment spare;
+    private Thread flusher;
+
+    MessageLog(File directory, int segmentSize, long flushIntervalMillis) {
+        this(directory, segmentSize, flushIntervalMillis, 0);
+    }
+
+    /**
+     * @param retainedSegments how many segments to keep, the one taking
+     *                         appends included, or 0 to keep them all
+     */
+    MessageLog(File directory, int segmentSize, long flushIntervalMillis, int retainedSegments) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.retainedSegments = retainedSegments;
+    }
+
+    /**
+     * Finds where each existing segment ends, keeps the last one mapped for
+     * appends and starts the background flusher.
+     */
+    synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create message log directory " + directory);
+        }
+        // A spare never holds messages before it is renamed, so a left over one is empty.
+        Files.deleteIfExists(new File(directory, SPARE_LOG).toPath());
+        Files.deleteIfExists(new File(directory, SPARE_INDEX).toPath());
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        if (files != null) {
+            for (File file : files) {
+                long baseOffset = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+                Segment segment = new Segment(baseOffset);
+                segment.recover();
+                segments.put(baseOffset, segment);
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, new Segment(0));
+        }
+        active = segments.lastEntry().getValue();
+        nextOffset = active.baseOffset + active.count;
+        // A crash may have left the older ones short of their last flush; recover() has fixed that.
+        for (Segment segment : segments.headMap(active.baseOffset).values()) {
+            segment.force();
+            segment.close();
+        }
+        expire();
+        spare = new Segment(SPARE_LOG, SPARE_INDEX);
+        LOGGER.info("Message log in {} holds {} messages", directory, nextOffset - segments.firstKey());
+
+        flusher = new Thread(this::flushPeriodically, "Message Log Flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Appends a message and returns its offset. The message is durable once
+     * the next flush has run.
+     *
+     * @return the offset of the message, or -1 if the log has been closed
+     */
+    synchronized long append(String room, String text, byte kind) throws IOException {
+        if (closed) {
+            return -1;
+        }
+        byte[] body = (room + " " + text).getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER_LENGTH + body.length;
+        if (!active.fits(length)) {
+            Segment next = spare;
+            spare = null;
+            if (next != null) {
+                next.claim(nextOffset);
+            } else {
+                next = new Segment(nextOffset);
+            }
+            // Forcing and closing the full segment is left to the flusher.
+            sealed.add(active);
+            active = next;
+            segments.put(nextOffset, active);
+            expire();
+            if (!active.fits(length)) {
+                throw new IOException("Message of " + length + " bytes does not fit in a segment");
+            }
+        }
+        active.append(length, System.currentTimeMillis(), kind, body);
+        dirty = true;
+        return nextOffset++;
+    }
+
+    /**
+     * Returns the offset the next message will get, which is also the number
+     * of messages logged so far, deleted ones included.
+     */
+    synchronized long nextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Returns up to max messages starting at an offset, oldest first. Messages
+     * deleted by retention are skipped.
+     */
+    synchronized List<Entry> read(long fromOffset, int max) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long offset = Math.max(fromOffset, segments.firstKey());
+        while (entries.size() < max && offset < nextOffset) {
+            Segment segment = segments.floorEntry(offset).getValue();
+            // Fewer than the offsets up to the next segment only if a crash cut it short.
+            segment.read((int) (offset - segment.baseOffset), max - entries.size(), entries);
+            Long next = segments.higherKey(offset);
+            if (next == null) {
+                break;
+            }
+            offset = next;
+        }
+        return entries;
+    }
+
+    /**
+     * Forces everything appended so far to disk, closes and deletes the
+     * segments that were waiting for it and prepares a new spare segment if
+     * the last one was taken. Appends are not held up meanwhile.
+     */
+    void flush() throws IOException {
+        Segment dirtySegment;
+        List<Segment> sealing;
+        boolean needsSpare;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            dirtySegment = dirty ? active : null;
+            dirty = false;
+            sealing = new ArrayList<>(sealed);
+            sealed.clear();
+            needsSpare = spare == null;
+        }
+        if (needsSpare) {
+            // Only the flusher makes spares, so nobody else made one meanwhile.
+            Segment next = new Segment(SPARE_LOG, SPARE_INDEX);
+            synchronized (this) {
+                if (closed) {
+                    next.close();
+                    next.delete();
+                } else {
+                    spare = next;
+                }
+            }
+        }
+        for (Segment segment : sealing) {
+            segment.force();
+        }
+        if (dirtySegment != null) {
+            dirtySegment.force();
+        }
+        List<Segment> deleting;
+        synchronized (this) {
+            for (Segment segment : sealing) {
+                segment.close();
+            }
+            deleting = new ArrayList<>(expired);
+            expired.clear();
+            for (Segment segment : deleting) {
+                segment.close();
+            }
+        }
+        for (Segment segment : deleting) {
+            segment.delete();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread flusher;
+        List<Segment> closing;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closing = new ArrayList<>(segments.values());
+            closing.addAll(expired);
+            if (spare != null) {
+                spare.close();
+                spare.delete();
+                spare = null;
+            }
+            flusher = this.flusher;
+        }
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+        // Nothing is appended anymore, so forcing needs no lock.
+        for (Segment segment : closing) {
+            segment.force();
+        }
+        synchronized (this) {
+            for (Segment segment : closing) {
+                segment.close();
+            }
+            for (Segment segment : expired) {
+                segment.delete();
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * Hands the segments beyond the retention limit, oldest first, to the
+     * flusher for deletion.
+     */
+    private void expire() {
+        while (retainedSegments > 0 && segments.size() > retainedSegments) {
+            expired.add(segments.pollFirstEntry().getValue());
+        }
+    }
+
+    private void flushPeriodically() {
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(flushIntervalMillis);
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                }
+                flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.error("Could not flush the message log", e);
+            }
+        }
+    }
+
+    /**
+     * One message read back from the log.
+     */
+    static final class Entry {
+        final long offset;
+        final long timestamp;
+        final byte kind;
+        final String room;
+        final String text;
+
+        Entry(long offset, long timestamp, byte kind, String room, String text) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.kind = kind;
+            this.room = room;
+            this.text = text;
+        }
+
+        /**
+         * Returns true for something a client said, false for an announcement
+         * like someone joining a room.
+         */
+        boolean isChat() {
+            return kind == KIND_CHAT;
+        }
+    }
+
+    /**
+     * A segment file and its index. Both are mapped in full until the segment
+     * is closed, after which they are read through their files. New segment
+     * files are zero filled, so the first record length of 0 marks the end of
+     * the data.
+     */
+    private final class Segment {
+        // Only changes when a spare is claimed, before the segment is in use.
+        long baseOffset;
+        private File logFile;
+        private File indexFile;
+        private RandomAccessFile file;
+        private RandomAccessFile index;
+        // Null once closed. Read without the log's lock by force().
+        private volatile MappedByteBuffer data;
+        private volatile MappedByteBuffer positions;
+        // Messages in the segment; index entries past this are unused.
+        int count;
+
+        Segment(long baseOffset) throws IOException {
+            this(fileName(baseOffset) + ".log", fileName(baseOffset) + ".idx");
+            this.baseOffset = baseOffset;
+        }
+
+        Segment(String logName, String indexName) throws IOException {
+            this.logFile = new File(directory, logName);
+            this.indexFile = new File(directory, indexName);
+            this.file = new RandomAccessFile(logFile, "rw");
+            this.index = new RandomAccessFile(indexFile, "rw");
+            // An index entry for every message the segment could possibly hold.
+            int indexSize = segmentSize / (RECORD_HEADER_LENGTH + 1) * INDEX_ENTRY_LENGTH;
+            this.data = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(file.length(), segmentSize));
+            this.positions = index.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+        }
+
+        /**
+         * Walks the records to find the end of the data, rebuilding the index
+         * on the way, since the last flush may have left either incomplete.
+         */
+        void recover() {
+            int position = 0;
+            int recovered = 0;
+            while (position + RECORD_HEADER_LENGTH <= data.capacity()) {
+                int length = data.getInt(position);
+                if (length < RECORD_HEADER_LENGTH || position + length > data.capacity()) {
+                    break;
+                }
+                positions.putInt(recovered * INDEX_ENTRY_LENGTH, position);
+                recovered++;
+                position += length;
+            }
+            count = recovered;
+            data.position(position);
+        }
+
+        /**
+         * Makes a spare the segment starting at an offset by renaming its
+         * files. They stay open and mapped through the rename.
+         */
+        void claim(long baseOffset) throws IOException {
+            File logFile = new File(directory, fileName(baseOffset) + ".log");
+            File indexFile = new File(directory, fileName(baseOffset) + ".idx");
+            Files.move(this.indexFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.move(this.logFile.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            this.baseOffset = baseOffset;
+            this.logFile = logFile;
+            this.indexFile = indexFile;
+        }
+
+        boolean fits(int length) {
+            return data.remaining() >= length
+                    && (count + 1) * INDEX_ENTRY_LENGTH <= positions.capacity();
+        }
+
+        void append(int length, long timestamp, byte kind, byte[] body) {
+            int position = data.position();
+            // The length goes in last, so a record is only visible once complete.
+            data.position(position + 4);
+            data.putLong(timestamp).put(kind).put(body);
+            data.putInt(position, length);
+            positions.putInt(count * INDEX_ENTRY_LENGTH, position);
+            count++;
+        }
+
+        /**
+         * Adds up to max messages starting at a message number to a list.
+         */
+        void read(int from, int max, List<Entry> entries) throws IOException {
+            int to = Math.min(count, from + max);
+            if (from >= to) {
+                return;
+            }
+            if (data != null) {
+                for (int number = from; number < to; number++) {
+                    entries.add(mappedEntry(number));
+                }
+                return;
+            }
+            try (FileChannel records = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+                 FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer positions = readFully(index, (long) from * INDEX_ENTRY_LENGTH,
+                        (to - from) * INDEX_ENTRY_LENGTH);
+                for (int number = from; number < to; number++) {
+                    int position = positions.getInt();
+                    int length = readFully(records, position, 4).getInt();
+                    ByteBuffer record = readFully(records, position + 4, length - 4);
+                    long timestamp = record.getLong();
+                    byte kind = record.get();
+                    entries.add(entry(baseOffset + number, timestamp, kind, record));
+                }
+            }
+        }
+
+        private Entry mappedEntry(int number) {
+            int position = positions.getInt(number * INDEX_ENTRY_LENGTH);
+            int length = data.getInt(position);
+            ByteBuffer record = data.duplicate();
+            record.position(position + 4).limit(position + length);
+            long timestamp = record.getLong();
+            byte kind = record.get();
+            return entry(baseOffset + number, timestamp, kind, record);
+        }
+
+        private Entry entry(long offset, long timestamp, byte kind, ByteBuffer body) {
+            String text = StandardCharsets.UTF_8.decode(body).toString();
+            int space = text.indexOf(' ');
+            return new Entry(offset, timestamp, kind, text.substring(0, space), text.substring(space + 1));
+        }
+
+        void force() {
+            MappedByteBuffer data = this.data;
+            MappedByteBuffer positions = this.positions;
+            if (data != null && positions != null) {
+                data.force();
+                positions.force();
+            }
+        }
+
+        /**
+         * Closes the files and drops the mappings. Does nothing if already
+         * closed.
+         */
+        void close() throws IOException {
+            if (file == null) {
+                return;
+            }
+            data = null;
+            positions = null;
+            file.close();
+            index.close();
+            file = null;
+            index = null;
+        }
+
+        void delete() {
+            if (!logFile.delete() || !indexFile.delete()) {
+                LOGGER.warn("Could not delete message log segment {}", logFile);
+            }
+        }
+    }
+
+    private static String fileName(long baseOffset) {
+        return String.format("%020d", baseOffset);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Message log segment ends early");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,115 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Serves the metrics of a {@link ChatServer} over HTTP at /metrics, in the
+ * Prometheus text format, so any scraper can graph them. Counters only ever
+ * grow; rates like messages per second are left to the scraper. The endpoint
+ * only listens on the loopback interface, so it is not exposed to chat
+ * clients.
+ */
+final class MetricsEndpoint {
+
+    private final static Logger LOGGER = LogManager.getLogger(MetricsEndpoint.class);
+
+    private final ChatServer server;
+    private final int port;
+    private HttpServer http;
+
+    MetricsEndpoint(ChatServer server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    void start() throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", this::handle);
+        http.start();
+        LOGGER.info("Metrics available at http://localhost:{}/metrics", port);
+    }
+
+    void stop() {
+        if (http != null) {
+            http.stop(0);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Formats the current value of every metric.
+     */
+    String render() {
+        ServerMetrics metrics = server.metrics();
+        StringBuilder text = new StringBuilder(2048);
+        counter(text, "chat_connections_accepted_total", "Client connections accepted.", metrics.acceptedConnections());
+        counter(text, "chat_connections_rejected_total", "Client connections turned away because the server was full.", metrics.rejectedConnections());
+        counter(text, "chat_idle_disconnects_total", "Clients disconnected for going silent.", metrics.idleDisconnects());
+        counter(text, "chat_messages_received_total", "Lines and frames received from clients.", metrics.messagesIn());
+        counter(text, "chat_messages_throttled_total", "Lines dropped for going over a client's rate limit.", metrics.throttledMessages());
+        counter(text, "chat_messages_sent_total", "Frames written to clients.", metrics.messagesOut());
+        counter(text, "chat_received_bytes_total", "Bytes received from clients.", metrics.bytesIn());
+        counter(text, "chat_sent_bytes_total", "Bytes written to clients.", metrics.bytesOut());
+        counter(text, "chat_socket_writes_total", "Writes and flushes to client sockets.", metrics.socketWrites());
+        counter(text, "chat_dropped_messages_total", "Frames dropped by full outbound queues.", server.getDroppedMessageCount());
+        gauge(text, "chat_connections", "Connected clients.", server.getConnectionCount());
+        gauge(text, "chat_sessions", "Clients with a screen name.", server.getSessionCount());
+        gauge(text, "chat_rooms", "Rooms with members.", server.getRoomCount());
+        gauge(text, "chat_outbound_queue_depth", "Frames queued for all clients together.", server.getTotalOutboundQueueDepth());
+        gauge(text, "chat_outbound_queue_depth_max", "Longest outbound queue of any client.", server.getMaxOutboundQueueDepth());
+        gauge(text, "chat_cluster_peers", "Connected cluster peers.", server.getClusterPeerCount());
+
+        long[] broadcasts = metrics.broadcastNanos();
+        String name = "chat_broadcast_duration_seconds";
+        text.append("# HELP ").append(name).append(" Time to queue a frame for every member of a room.\n");
+        text.append("# TYPE ").append(name).append(" histogram\n");
+        for (int i = 0; i < ServerMetrics.BROADCAST_BUCKETS.length; i++) {
+            text.append(name).append("_bucket{le=\"").append(ServerMetrics.BROADCAST_BUCKETS[i] / 1e9).append("\"} ")
+                    .append(broadcasts[i + 2]).append('\n');
+        }
+        text.append(name).append("_bucket{le=\"+Inf\"} ").append(broadcasts[0]).append('\n');
+        text.append(name).append("_sum ").append(broadcasts[1] / 1e9).append('\n');
+        text.append(name).append("_count ").append(broadcasts[0]).append('\n');
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        metric(text, name, help, "counter", value);
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        metric(text, name, help, "gauge", value);
+    }
+
+    private static void metric(StringBuilder text, String name, String help, String type, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append(name).append(' ').append(value).append('\n');
+    }
+}
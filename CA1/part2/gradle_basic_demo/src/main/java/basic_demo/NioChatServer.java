@@ -0,0 +1,474 @@
+package basic_demo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+
+/**
+ * A non-blocking variant of the chat room server. Instead of parking one thread
+ * per client in a blocking read, a single acceptor hands every new connection to
+ * one of a small, fixed number of event loops, each of which multiplexes its
+ * connections with a {@link Selector}. This class only moves bytes: complete
+ * lines or binary frames are handed to the owning {@link ChatServer}, which implements the chat
+ * protocol for every mode, and frames queued by the server are written back.
+ */
+public class NioChatServer implements Runnable {
+
+    private static final Logger LOGGER = LogManager.getLogger(NioChatServer.class);
+
+    // Size of the per-connection socket read buffer.
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final ChatServer server;
+    private final int serverPort;
+    private final int ioThreads;
+    private final int outboundQueueCapacity;
+    private final OverflowPolicy overflowPolicy;
+
+    // One permit per client that may be connected at the same time.
+    private final Semaphore connectionPermits;
+
+    private volatile ServerSocketChannel listener;
+    private volatile EventLoop[] loops;
+    // Set by stopAccepting(): the loops keep serving the connections there are.
+    private volatile boolean draining;
+    private volatile boolean shuttingDown;
+
+    NioChatServer(ChatServer server, ChatServerConfig config) {
+        this.server = server;
+        this.serverPort = config.getServerPort();
+        this.ioThreads = config.getIoThreads();
+        this.outboundQueueCapacity = config.getOutboundQueueCapacity();
+        // An event loop must never wait for another client, so BLOCK falls back to DISCONNECT.
+        this.overflowPolicy = config.getOverflowPolicy() == OverflowPolicy.BLOCK
+                ? OverflowPolicy.DISCONNECT
+                : config.getOverflowPolicy();
+        this.connectionPermits = new Semaphore(config.getMaxConnections());
+    }
+
+    /**
+     * Starts the event loops and then accepts connections on the calling thread,
+     * distributing them round-robin over the loops.
+     */
+    public void run() {
+        EventLoop[] loops = new EventLoop[ioThreads];
+        this.loops = loops;
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            this.listener = listener;
+            if (shuttingDown) {
+                return;
+            }
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(Selector.open());
+                Thread t = new Thread(loops[i], "Chat Server I/O Thread " + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            listener.bind(new InetSocketAddress(serverPort));
+            LOGGER.info("Non-blocking chat server listening on port {} with {} I/O threads", serverPort, ioThreads);
+            server.listening();
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = listener.accept();
+                if (!connectionPermits.tryAcquire()) {
+                    server.reject(channel);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.execute(() -> new Connection(channel, loop).open());
+            }
+        } catch (IOException e) {
+            if (!shuttingDown && !draining) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (!draining) {
+                for (EventLoop loop : loops) {
+                    if (loop != null) {
+                        loop.shutdown();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections but keeps serving the existing ones until
+     * {@link #shutdown()}.
+     */
+    public void stopAccepting() {
+        draining = true;
+        ServerSocketChannel listener = this.listener;
+        if (listener != null) {
+            try { listener.close(); } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes every client connection as well as
+     * the event loops.
+     */
+    public void shutdown() {
+        shuttingDown = true;
+        ServerSocketChannel listener = this.listener;
+        if (listener != null) {
+            try { listener.close(); } catch (IOException e) {}
+        }
+        EventLoop[] loops = this.loops;
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * A thread that owns a selector and services every connection registered
+     * with it. Other threads never touch a connection's selection key directly;
+     * they hand work to the owning loop through {@link #execute(Runnable)}.
+     *
+     * Connections do not write as soon as a frame is queued for them. They are
+     * marked instead, and every marked connection is written once at the end
+     * of the loop's pass, so all frames produced during one pass go out in a
+     * single write per connection.
+     */
+    private static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Connections with frames queued during this pass; only touched by the loop.
+        private final List<Connection> unflushed = new ArrayList<>();
+        private volatile Thread thread;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inEventLoop()) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Has a connection written at the end of this pass. Only called on the loop.
+         */
+        void flushLater(Connection connection) {
+            unflushed.add(connection);
+        }
+
+        /**
+         * Closes all connections of this loop and then the selector itself, which
+         * makes the loop exit. Safe to call more than once and from any thread.
+         */
+        void shutdown() {
+            execute(() -> {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).closeNow();
+                }
+                try { selector.close(); } catch (IOException e) {}
+            });
+        }
+
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (ClosedSelectorException e) {
+                            // Shut down by an earlier task.
+                            throw e;
+                        } catch (RuntimeException e) {
+                            LOGGER.error("Event loop task failed", e);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (RuntimeException e) {
+                            failed(connection, e);
+                        }
+                    }
+                    // By index: a failed write disconnects its client, and telling
+                    // the others it left queues frames for more connections.
+                    for (int i = 0; i < unflushed.size(); i++) {
+                        Connection connection = unflushed.get(i);
+                        connection.flushPending.set(false);
+                        try {
+                            connection.flush();
+                        } catch (RuntimeException e) {
+                            failed(connection, e);
+                        }
+                    }
+                    unflushed.clear();
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.error("Event loop failed", e);
+            }
+        }
+
+        /**
+         * Drops a connection that hit a bug, so it does not take the others
+         * on this loop down with it.
+         */
+        private void failed(Connection connection, RuntimeException e) {
+            LOGGER.error("Dropping client after an unexpected error", e);
+            try {
+                connection.closeNow();
+            } catch (RuntimeException again) {
+                LOGGER.error("Could not drop the client cleanly", again);
+            }
+        }
+    }
+
+    /**
+     * The state of one client connection. Reads, protocol handling and socket
+     * writes only ever happen on the owning event loop; {@link #deliver(Frame)}
+     * may be called from any thread and just queues the frame.
+     */
+    private final class Connection extends ChatSession {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        // Grows for binary frames that do not fit, never past the largest frame.
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final AtomicBoolean flushPending = new AtomicBoolean();
+        // Frames taken off the queue but not completely written yet, in order.
+        private final ByteBuffer[] writing = new ByteBuffer[ChatServer.WRITE_BATCH_SIZE];
+        private int writingCount;
+        private SelectionKey key;
+        private byte[] line = new byte[256];
+        private int lineLength;
+        // Whether the first bytes were checked for the binary protocol preamble.
+        private boolean negotiated;
+        private boolean closed;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            super(outboundQueueCapacity, overflowPolicy);
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        void open() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                server.connected(this);
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        /**
+         * Drains whatever is available on the socket and feeds every complete
+         * line or binary frame to the protocol handler. Bytes of a binary frame
+         * that has not fully arrived stay in the read buffer.
+         */
+        void read() {
+            try {
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    closeNow();
+                    return;
+                }
+                server.metrics().bytesReceived(n);
+                readBuffer.flip();
+                if (protocol() == WireProtocol.TEXT) {
+                    readLines();
+                }
+                if (protocol() == WireProtocol.BINARY) {
+                    readFrames();
+                }
+                if (closed) {
+                    return;
+                }
+                readBuffer.compact();
+                if (!readBuffer.hasRemaining()) {
+                    int capacity = Math.min(readBuffer.capacity() * 2,
+                            BinaryCodec.HEADER_LENGTH + BinaryCodec.MAX_PAYLOAD_LENGTH);
+                    readBuffer.flip();
+                    readBuffer = ByteBuffer.allocate(capacity).put(readBuffer);
+                }
+            } catch (ProtocolException e) {
+                LOGGER.warn("Dropping client that broke the binary protocol: {}", e.getMessage());
+                closeNow();
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        private void readLines() throws ProtocolException {
+            while (readBuffer.hasRemaining() && !closed) {
+                if (!negotiated) {
+                    if (readBuffer.get(readBuffer.position()) == WireProtocol.PREAMBLE) {
+                        if (readBuffer.remaining() < 2) {
+                            return;
+                        }
+                        readBuffer.get();
+                        byte version = readBuffer.get();
+                        if (version != WireProtocol.VERSION) {
+                            throw new ProtocolException("Unsupported binary protocol version " + version);
+                        }
+                        negotiated = true;
+                        setProtocol(WireProtocol.BINARY);
+                        return;
+                    }
+                    negotiated = true;
+                }
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    int end = lineLength;
+                    if (end > 0 && line[end - 1] == '\r') {
+                        end--;
+                    }
+                    String text = new String(line, 0, end, StandardCharsets.UTF_8);
+                    lineLength = 0;
+                    server.lineReceived(this, text);
+                } else if (lineLength == ChatServer.MAX_LINE_LENGTH) {
+                    LOGGER.warn("Dropping client that sent a line longer than {} bytes", ChatServer.MAX_LINE_LENGTH);
+                    closeNow();
+                } else {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, Math.min(line.length * 2, ChatServer.MAX_LINE_LENGTH));
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+        }
+
+        /**
+         * Decodes binary frames straight out of the read buffer.
+         */
+        private void readFrames() throws ProtocolException {
+            String text;
+            while (!closed && (text = BinaryCodec.decode(readBuffer)) != null) {
+                server.lineReceived(this, text);
+            }
+        }
+
+        /**
+         * Has the owning loop write a freshly queued frame at the end of its
+         * current pass, together with any other frames queued until then. Only
+         * the first frame of a batch schedules the write.
+         */
+        @Override
+        void frameQueued() {
+            if (flushPending.compareAndSet(false, true)) {
+                if (loop.inEventLoop()) {
+                    loop.flushLater(this);
+                } else {
+                    loop.execute(() -> loop.flushLater(this));
+                }
+            }
+        }
+
+        /**
+         * Writes queued frames until the queue is empty or the socket would block,
+         * in which case we ask the selector to tell us when it is writable again.
+         * Up to a batch of frames goes out in a single gathering write.
+         */
+        void flush() {
+            if (closed || key == null) {
+                return;
+            }
+            try {
+                while (true) {
+                    Frame frame;
+                    while (writingCount < writing.length && (frame = outbound().poll()) != null) {
+                        writing[writingCount++] = frame.buffer(protocol());
+                    }
+                    if (writingCount == 0) {
+                        if (outbound().isClosed()) {
+                            // Finished: let the client read to the end of the stream.
+                            channel.shutdownOutput();
+                        }
+                        break;
+                    }
+                    long written = channel.write(writing, 0, writingCount);
+                    int done = 0;
+                    while (done < writingCount && !writing[done].hasRemaining()) {
+                        done++;
+                    }
+                    server.metrics().written(done, written);
+                    System.arraycopy(writing, done, writing, 0, writingCount - done);
+                    Arrays.fill(writing, writingCount - done, writingCount, null);
+                    writingCount -= done;
+                    if (writingCount > 0) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        /**
+         * Hands the disconnect to the owning loop, which is the only thread that
+         * touches the channel and selection key.
+         */
+        @Override
+        void close() {
+            if (loop.inEventLoop()) {
+                closeNow();
+            } else {
+                loop.execute(this::closeNow);
+            }
+        }
+
+        private void closeNow() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try { channel.close(); } catch (IOException e) {}
+            connectionPermits.release();
+            server.disconnected(this);
+        }
+    }
+}
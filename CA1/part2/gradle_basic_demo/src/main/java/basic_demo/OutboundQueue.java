@@ -0,0 +1,172 @@
+package basic_demo;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bounded queue of frames waiting to be written to one client. Broadcasting
+ * threads only ever {@link #offer(Frame)} into it, and a writer owned by the
+ * client drains it, so a client that reads slowly fills up its own queue instead
+ * of stalling everybody who talks to it. What happens when the queue is full is
+ * decided by the {@link OverflowPolicy}.
+ */
+class OutboundQueue {
+
+    // Marks a closed queue for the writer; compared by identity.
+    private static final Frame CLOSED = Frame.of("CLOSED", "");
+
+    // How often a sender blocked by a full queue checks whether it was closed.
+    private static final long BLOCK_CHECK_MILLIS = 100;
+
+    private final BlockingQueue<Frame> queue;
+    private final OverflowPolicy policy;
+    private final Runnable onOverflow;
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param onOverflow called when the DISCONNECT policy gives up on the client
+     */
+    OutboundQueue(int capacity, OverflowPolicy policy, Runnable onOverflow) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.onOverflow = onOverflow;
+    }
+
+    /**
+     * Queues a frame for the client.
+     *
+     * @return false if the frame was not queued because the queue is closed or
+     *         the client is being disconnected for not keeping up
+     */
+    boolean offer(Frame frame) {
+        if (closed) {
+            return false;
+        }
+        if (!queue.offer(frame)) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    while (!queue.offer(frame)) {
+                        Frame oldest = queue.poll();
+                        if (oldest == CLOSED) {
+                            // Raced with close(), put the end marker back.
+                            close();
+                            return false;
+                        }
+                        if (oldest != null) {
+                            dropped.incrementAndGet();
+                        }
+                    }
+                    break;
+                case BLOCK:
+                    try {
+                        while (!queue.offer(frame, BLOCK_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                            if (closed) {
+                                return false;
+                            }
+                        }
+                        if (closed) {
+                            // The space we got was made by close(), which throws the frame away.
+                            return false;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    break;
+                default:
+                    dropped.incrementAndGet();
+                    onOverflow.run();
+                    return false;
+            }
+        }
+        int depth = queue.size();
+        if (depth > highWaterMark.get()) {
+            highWaterMark.accumulateAndGet(depth, Math::max);
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @return the frame, or null once the queue has been closed
+     */
+    Frame take() throws InterruptedException {
+        Frame frame = queue.take();
+        return frame == CLOSED ? null : frame;
+    }
+
+    /**
+     * Returns the next frame without waiting, or null if there is none (or the
+     * queue has been closed).
+     */
+    Frame poll() {
+        Frame frame = queue.poll();
+        if (frame == CLOSED) {
+            queue.offer(CLOSED);
+            return null;
+        }
+        return frame;
+    }
+
+    /**
+     * Waits up to the given time for the next frame.
+     *
+     * @return the frame, or null if none arrived in time (or the queue has been
+     *         closed)
+     */
+    Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Frame frame = queue.poll(timeout, unit);
+        if (frame == CLOSED) {
+            queue.offer(CLOSED);
+            return null;
+        }
+        return frame;
+    }
+
+    /**
+     * Discards everything still queued and wakes up the writer, which will see
+     * the end of the queue.
+     */
+    void close() {
+        closed = true;
+        queue.clear();
+        while (!queue.offer(CLOSED)) {
+            queue.poll();
+        }
+    }
+
+    /**
+     * Refuses new frames but, unlike {@link #close()}, keeps the ones already
+     * queued and adds a last one, so the writer sends them all before it sees
+     * the end of the queue. Never waits for room.
+     *
+     * @return false if the queue is too full for the last frame and the end,
+     *         in which case only close() ends it
+     */
+    boolean finish(Frame last) {
+        closed = true;
+        return queue.offer(last) && queue.offer(CLOSED);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int depth() {
+        return closed ? 0 : queue.size();
+    }
+
+    int highWaterMark() {
+        return highWaterMark.get();
+    }
+
+    long droppedCount() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,15 @@
+package basic_demo;
+
+/**
+ * What to do with a message for a client whose outbound queue is already full,
+ * i.e. a client that reads slower than the room talks.
+ */
+public enum OverflowPolicy {
+    // Discard the oldest queued message to make room for the new one.
+    DROP_OLDEST,
+    // Disconnect the slow client.
+    DISCONNECT,
+    // Make the sender wait until there is room. The NIO server cannot block its
+    // event loops and disconnects the client instead.
+    BLOCK
+}
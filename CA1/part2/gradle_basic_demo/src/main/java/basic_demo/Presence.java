@@ -0,0 +1,113 @@
+package basic_demo;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells the clients that follow the roster of their room, see
+ * {@link ChatSession#followsPresence()}, who entered and left it. Changes are
+ * not sent one by one: the first change to a room opens a short window, every
+ * change during the window is collected, and when it closes the members get a
+ * single frame like "PRESENCE #lobby +alice +bob -carol" with the outcome.
+ *
+ * When a whole crowd reconnects at once, telling everybody about everybody
+ * separately would cost one frame per pair of clients. With the window it
+ * costs one frame per client for each window the reconnects span, and a name
+ * that comes and goes within a window is only mentioned once, with where it
+ * ended up.
+ *
+ * The frames only cover the clients of this server. A window of 0 sends every
+ * change right away.
+ */
+final class Presence {
+
+    private final long windowMillis;
+
+    // Changes not sent yet, by room and then by name, true for entered; guarded by this.
+    private final Map<ChatRoom, Map<String, Boolean>> pending = new HashMap<>();
+
+    private final ScheduledExecutorService timer;
+
+    Presence(long windowMillis) {
+        this.windowMillis = windowMillis;
+        this.timer = windowMillis > 0
+                ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread t = new Thread(runnable, "Chat Presence");
+                    t.setDaemon(true);
+                    return t;
+                })
+                : null;
+    }
+
+    void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Records that a client entered or left a room.
+     */
+    void changed(ChatRoom room, String name, boolean entered) {
+        if (timer == null) {
+            send(room, Map.of(name, entered));
+            return;
+        }
+        synchronized (this) {
+            Map<String, Boolean> changes = pending.get(room);
+            if (changes == null) {
+                changes = new LinkedHashMap<>();
+                pending.put(room, changes);
+                try {
+                    timer.schedule(() -> flush(room), windowMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Stopped, nobody is listening anymore.
+                    pending.remove(room);
+                    return;
+                }
+            }
+            // Removed first so the name moves to the end, in the order of the last change.
+            changes.remove(name);
+            changes.put(name, entered);
+        }
+    }
+
+    /**
+     * Returns the ROSTER frame of a room, listing its members right now.
+     */
+    static Frame roster(ChatRoom room) {
+        StringBuilder names = new StringBuilder().append(room);
+        for (ChatSession member : room.members()) {
+            names.append(' ').append(member.name());
+        }
+        return Frame.of(Frame.ROSTER, names.toString());
+    }
+
+    private void flush(ChatRoom room) {
+        Map<String, Boolean> changes;
+        synchronized (this) {
+            changes = pending.remove(room);
+        }
+        if (changes != null) {
+            send(room, changes);
+        }
+    }
+
+    private static void send(ChatRoom room, Map<String, Boolean> changes) {
+        StringBuilder delta = new StringBuilder().append(room);
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            delta.append(' ').append(change.getValue() ? '+' : '-').append(change.getKey());
+        }
+        Frame frame = Frame.of(Frame.PRESENCE, delta.toString());
+        for (ChatSession member : room.members()) {
+            if (member.followsPresence()) {
+                member.deliver(frame);
+            }
+        }
+    }
+}
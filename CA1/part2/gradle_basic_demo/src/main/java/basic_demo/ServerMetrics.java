@@ -0,0 +1,155 @@
+package basic_demo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms a {@link ChatServer} keeps about itself.
+ * Every transport reports into the same instance, which the
+ * {@link MetricsEndpoint} reads when it is scraped. Counters are
+ * {@link LongAdder}s, so threads counting at the same time do not contend.
+ * The broadcast histogram is made of them too, one per bucket, so broadcasts
+ * on different threads never wait for each other to be recorded.
+ */
+final class ServerMetrics {
+
+    // Upper limits of the broadcast duration buckets, in nanoseconds.
+    static final long[] BROADCAST_BUCKETS = {
+            TimeUnit.MICROSECONDS.toNanos(10), TimeUnit.MICROSECONDS.toNanos(50),
+            TimeUnit.MICROSECONDS.toNanos(100), TimeUnit.MICROSECONDS.toNanos(500),
+            TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(5),
+            TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(50),
+            TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(500),
+            TimeUnit.SECONDS.toNanos(1),
+    };
+
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder throttledMessages = new LongAdder();
+    private final LongAdder idleDisconnects = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder socketWrites = new LongAdder();
+    // Time it takes to queue a frame for every member of a room: how many
+    // broadcasts fell in each bucket, the last one for those over every limit.
+    private final LongAdder[] broadcastBuckets = new LongAdder[BROADCAST_BUCKETS.length + 1];
+    private final LongAdder broadcastNanos = new LongAdder();
+
+    ServerMetrics() {
+        for (int i = 0; i < broadcastBuckets.length; i++) {
+            broadcastBuckets[i] = new LongAdder();
+        }
+    }
+
+    void connectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    /**
+     * Counts a connection turned away because the server was full.
+     */
+    void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    /**
+     * Counts a line dropped because its sender went over its rate limit.
+     */
+    void messageThrottled() {
+        throttledMessages.increment();
+    }
+
+    /**
+     * Counts a client disconnected for having gone silent.
+     */
+    void idleDisconnect() {
+        idleDisconnects.increment();
+    }
+
+    /**
+     * Counts a line or binary frame received from a client.
+     */
+    void messageReceived() {
+        messagesIn.increment();
+    }
+
+    void bytesReceived(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Counts one write to a client socket that sent a number of bytes and
+     * completed a number of frames.
+     */
+    void written(int frames, long bytes) {
+        socketWrites.increment();
+        messagesOut.add(frames);
+        bytesOut.add(bytes);
+    }
+
+    void broadcastCompleted(long nanos) {
+        int bucket = 0;
+        while (bucket < BROADCAST_BUCKETS.length && nanos > BROADCAST_BUCKETS[bucket]) {
+            bucket++;
+        }
+        broadcastBuckets[bucket].increment();
+        broadcastNanos.add(Math.max(0, nanos));
+    }
+
+    long acceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    long rejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    long throttledMessages() {
+        return throttledMessages.sum();
+    }
+
+    long idleDisconnects() {
+        return idleDisconnects.sum();
+    }
+
+    long messagesIn() {
+        return messagesIn.sum();
+    }
+
+    long messagesOut() {
+        return messagesOut.sum();
+    }
+
+    long bytesIn() {
+        return bytesIn.sum();
+    }
+
+    long bytesOut() {
+        return bytesOut.sum();
+    }
+
+    long socketWrites() {
+        return socketWrites.sum();
+    }
+
+    /**
+     * Returns the broadcast count, the sum of their durations and, for every
+     * limit in {@link #BROADCAST_BUCKETS}, how many took at most that long,
+     * all in nanoseconds. The count is added up from the buckets, so the
+     * buckets never exceed it, while broadcasts completing during the call
+     * may be missing from one number and not another.
+     */
+    long[] broadcastNanos() {
+        long[] snapshot = new long[BROADCAST_BUCKETS.length + 2];
+        long seen = 0;
+        for (int i = 0; i < BROADCAST_BUCKETS.length; i++) {
+            seen += broadcastBuckets[i].sum();
+            snapshot[i + 2] = seen;
+        }
+        snapshot[0] = seen + broadcastBuckets[BROADCAST_BUCKETS.length].sum();
+        snapshot[1] = broadcastNanos.sum();
+        return snapshot;
+    }
+}
@@ -0,0 +1,71 @@
+package basic_demo;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A set of sessions kept as an immutable array that is swapped with
+ * compare-and-set on every change. Adding and removing pay for a copy, while
+ * iterating for a broadcast is a plain array walk that takes no lock and never
+ * sees a half-applied change.
+ */
+final class SessionSet {
+
+    private static final ChatSession[] NO_SESSIONS = new ChatSession[0];
+
+    private final AtomicReference<ChatSession[]> snapshot = new AtomicReference<>(NO_SESSIONS);
+
+    void add(ChatSession session) {
+        ChatSession[] current;
+        ChatSession[] next;
+        do {
+            current = snapshot.get();
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = session;
+        } while (!snapshot.compareAndSet(current, next));
+    }
+
+    /**
+     * @return false if the session was not in the set
+     */
+    boolean remove(ChatSession session) {
+        ChatSession[] current;
+        ChatSession[] next;
+        do {
+            current = snapshot.get();
+            int index = indexOf(current, session);
+            if (index < 0) {
+                return false;
+            }
+            next = new ChatSession[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, next.length - index);
+        } while (!snapshot.compareAndSet(current, next));
+        return true;
+    }
+
+    /**
+     * Returns the members at the time of the call. The array is shared and
+     * must not be modified.
+     */
+    ChatSession[] snapshot() {
+        return snapshot.get();
+    }
+
+    int size() {
+        return snapshot.get().length;
+    }
+
+    boolean isEmpty() {
+        return snapshot.get().length == 0;
+    }
+
+    private static int indexOf(ChatSession[] sessions, ChatSession session) {
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] == session) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,89 @@
+package basic_demo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timer wheel: a ring of buckets, one per tick, each holding the
+ * items due in that tick. Scheduling drops an item into the bucket of its
+ * deadline and advancing the wheel empties the buckets whose ticks have passed,
+ * so both cost the same for ten connections as for a hundred thousand, and
+ * there is no timer object or thread per item. Deadlines further away than
+ * one turn of the wheel wait in their bucket until the right turn comes round.
+ *
+ * Deadlines are only as precise as the tick. Items are handed out after
+ * their deadline, never before.
+ */
+final class TimerWheel<T> {
+
+    private final long tickNanos;
+    private final List<ArrayDeque<Timeout<T>>> buckets;
+    // The next tick to expire, guarded by this.
+    private long currentTick;
+
+    /**
+     * @param size number of buckets, best a bit more than the usual deadline in ticks
+     * @param tickNanos resolution of the wheel
+     * @param now the current {@link System#nanoTime()}
+     */
+    TimerWheel(int size, long tickNanos, long now) {
+        if (size < 1 || tickNanos < 1) {
+            throw new IllegalArgumentException("size and tick must be positive");
+        }
+        this.tickNanos = tickNanos;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+        this.currentTick = Math.floorDiv(now, tickNanos);
+    }
+
+    /**
+     * Has an item handed out by the first {@link #advance} past its deadline.
+     * Safe to call from any thread, including from the consumer of advance.
+     */
+    synchronized void schedule(T item, long deadline) {
+        // Rounded up, so an item is never handed out early.
+        long tick = Math.max(Math.floorDiv(deadline + tickNanos - 1, tickNanos), currentTick);
+        buckets.get((int) Math.floorMod(tick, (long) buckets.size())).add(new Timeout<>(item, tick));
+    }
+
+    /**
+     * Expires every tick up to now and hands the items that were due to the
+     * consumer. The consumer runs without the wheel's lock, so it may schedule
+     * items again.
+     */
+    void advance(long now, Consumer<? super T> consumer) {
+        List<T> due = new ArrayList<>();
+        synchronized (this) {
+            long lastTick = Math.floorDiv(now, tickNanos);
+            // More than a full turn behind, every bucket only needs one look.
+            long firstTick = Math.max(currentTick, lastTick - buckets.size() + 1);
+            for (long tick = firstTick; tick <= lastTick; tick++) {
+                Iterator<Timeout<T>> timeouts = buckets.get((int) Math.floorMod(tick, (long) buckets.size())).iterator();
+                while (timeouts.hasNext()) {
+                    Timeout<T> timeout = timeouts.next();
+                    if (timeout.tick <= lastTick) {
+                        due.add(timeout.item);
+                        timeouts.remove();
+                    }
+                }
+            }
+            currentTick = Math.max(currentTick, lastTick + 1);
+        }
+        due.forEach(consumer);
+    }
+
+    private static final class Timeout<T> {
+        final T item;
+        final long tick;
+
+        Timeout(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+}
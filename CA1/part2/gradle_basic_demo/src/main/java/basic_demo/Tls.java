@@ -0,0 +1,72 @@
+package basic_demo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * The TLS plumbing of the chat server. Keystores are PKCS12 files; for local
+ * testing a self-signed one will do, see the createKeystore task in
+ * build.gradle.
+ *
+ * Handshakes are the expensive part of TLS, so both sides keep sessions for
+ * resumption: a client that reconnects through the same {@link SSLContext}
+ * resumes its session with an abbreviated handshake instead of a full one.
+ * The server remembers sessions for an hour.
+ */
+final class Tls {
+
+    // Sessions the server keeps for resumption, and for how long.
+    private static final int SESSION_CACHE_SIZE = 10_000;
+    private static final int SESSION_TIMEOUT_SECONDS = (int) TimeUnit.HOURS.toSeconds(1);
+
+    private Tls() {
+    }
+
+    /**
+     * Creates the server's context from a keystore holding its key and
+     * certificate.
+     */
+    static SSLContext serverContext(File keystore, char[] password) throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(load(keystore, password), password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use keystore " + keystore + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Layers the server side of TLS over an accepted socket. The handshake
+     * happens on the first read or write, so it runs on the client's handler
+     * thread rather than holding up the acceptor.
+     */
+    static SSLSocket wrap(SSLContext context, Socket socket) throws IOException {
+        SSLSocket tls = (SSLSocket) context.getSocketFactory()
+                .createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        tls.setUseClientMode(false);
+        return tls;
+    }
+
+    private static KeyStore load(File file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(file)) {
+            store.load(in, password);
+        }
+        return store;
+    }
+}
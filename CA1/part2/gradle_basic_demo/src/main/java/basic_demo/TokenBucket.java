@@ -0,0 +1,67 @@
+package basic_demo;
+
+/**
+ * A token bucket rate limit. Tokens flow in at a fixed rate up to a burst
+ * capacity, and every unit of work takes some out; work that finds too few
+ * tokens is refused. The bucket is refilled lazily from the clock of the
+ * caller when it is used, so an idle bucket costs nothing and there is no
+ * timer. Not thread-safe: each client's buckets are only used by the thread
+ * reading from that client.
+ */
+final class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param perSecond the sustained rate
+     * @param burst how many tokens can be saved up, at least 1
+     * @param now the current {@link System#nanoTime()}
+     */
+    TokenBucket(long perSecond, long burst, long now) {
+        if (perSecond < 1 || burst < 1) {
+            throw new IllegalArgumentException("rate and burst must be positive");
+        }
+        this.tokensPerNano = perSecond / 1e9;
+        this.capacity = burst;
+        this.tokens = burst;
+        this.lastRefill = now;
+    }
+
+    /**
+     * Takes tokens if there are enough. Work bigger than the whole bucket is
+     * let through when the bucket is full, leaving it in debt, so a single
+     * large message slows its sender down instead of never getting through.
+     *
+     * @return false if the work must be refused
+     */
+    boolean tryTake(long amount, long now) {
+        if (!canTake(amount, now)) {
+            return false;
+        }
+        take(amount);
+        return true;
+    }
+
+    /**
+     * Checks whether {@link #tryTake} would let work through, without taking
+     * anything, so work limited by several buckets is only charged once all
+     * of them agree.
+     */
+    boolean canTake(long amount, long now) {
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        return tokens >= Math.min(amount, capacity);
+    }
+
+    /**
+     * Takes tokens after {@link #canTake} said yes.
+     */
+    void take(long amount) {
+        tokens -= amount;
+    }
+}
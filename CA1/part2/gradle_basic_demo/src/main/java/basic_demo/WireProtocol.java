@@ -0,0 +1,20 @@
+package basic_demo;
+
+/**
+ * How frames are put on the wire for one client. Every connection starts out
+ * speaking the original newline terminated {@link #TEXT} protocol. A client
+ * that wants {@link #BINARY} frames answers the first SUBMITNAME with the two
+ * bytes {@link #PREAMBLE} and {@link #VERSION} before anything else; from then
+ * on both directions use {@link BinaryCodec} frames. A text line can never
+ * start with a NUL byte, so old clients are not affected.
+ */
+enum WireProtocol {
+    TEXT,
+    BINARY;
+
+    // First byte of the switch to the binary protocol.
+    static final byte PREAMBLE = 0;
+
+    // The binary protocol version the preamble asks for, the only one there is.
+    static final byte VERSION = 1;
+}
@@ -0,0 +1,64 @@
+package basic_demo;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BinaryCodecTest {
+
+    @Test public void decodesFramesOnlyOnceTheyAreComplete() throws Exception {
+        byte[] first = frame(BinaryCodec.TYPE_TEXT, "h\u00e9llo\nworld");
+        byte[] second = frame(BinaryCodec.TYPE_TEXT, "");
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        buffer.put(first, 0, first.length - 1).flip();
+        assertNull(BinaryCodec.decode(buffer));
+        assertEquals("an incomplete frame is left alone", 0, buffer.position());
+
+        buffer.compact().put(first[first.length - 1]).put(second).flip();
+        assertEquals("h\u00e9llo\nworld", BinaryCodec.decode(buffer));
+        assertEquals("", BinaryCodec.decode(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test public void framesMatchTheTextLines() {
+        Frame frame = Frame.message("bob: hi");
+        ByteBuffer binary = frame.buffer(WireProtocol.BINARY);
+        assertEquals(7, binary.getInt());
+        assertEquals(BinaryCodec.TYPE_MESSAGE, binary.get());
+        assertEquals("bob: hi", StandardCharsets.UTF_8.decode(binary).toString());
+        assertEquals("MESSAGE bob: hi\n", StandardCharsets.UTF_8.decode(frame.buffer(WireProtocol.TEXT)).toString());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsOversizedFrames() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(BinaryCodec.HEADER_LENGTH);
+        buffer.putInt(BinaryCodec.MAX_PAYLOAD_LENGTH + 1).put(BinaryCodec.TYPE_TEXT).flip();
+        BinaryCodec.decode(buffer);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesToEncodeOversizedFrames() {
+        BinaryCodec.encode(BinaryCodec.TYPE_TEXT, "x".repeat(BinaryCodec.MAX_PAYLOAD_LENGTH + 1));
+    }
+
+    @Test public void longArgumentsAreCutToFitAFrame() {
+        // Three bytes each, so the limit falls inside a character.
+        Frame frame = Frame.message("bob: " + "\u20ac".repeat(BinaryCodec.MAX_PAYLOAD_LENGTH / 3));
+        ByteBuffer binary = frame.buffer(WireProtocol.BINARY);
+        int length = binary.getInt();
+        assertTrue(length <= BinaryCodec.MAX_PAYLOAD_LENGTH);
+        assertEquals(BinaryCodec.HEADER_LENGTH + length, frame.length(WireProtocol.BINARY));
+        binary.get();
+        String text = StandardCharsets.UTF_8.decode(binary).toString();
+        assertTrue(text.startsWith("bob: \u20ac"));
+        assertTrue("cut between characters", text.endsWith("\u20ac"));
+    }
+
+    static byte[] frame(byte type, String text) {
+        return BinaryCodec.encode(type, text);
+    }
+}
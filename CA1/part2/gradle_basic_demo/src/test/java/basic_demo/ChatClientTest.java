@@ -0,0 +1,13 @@
+package basic_demo;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ChatClientTest {
+
+    @Test public void rostersAndPresenceChangesAreShownAsSentences() {
+        assertEquals("In #lobby: alice bob", ChatClient.roster("#lobby alice bob"));
+        assertEquals("#lobby: carol joined, bob left", ChatClient.presence("#lobby +carol -bob"));
+        assertEquals("#team: alice joined", ChatClient.presence("#team +alice"));
+    }
+}
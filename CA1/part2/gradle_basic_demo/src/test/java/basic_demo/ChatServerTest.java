@@ -0,0 +1,673 @@
+package basic_demo;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ChatServerTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test public void threadPoolServerSpeaksTheChatProtocol() throws Exception {
+        assertChatProtocol(ChatServer.Mode.THREAD_POOL);
+    }
+
+    @Test public void virtualThreadServerSpeaksTheChatProtocol() throws Exception {
+        Assume.assumeTrue("virtual threads need Java 21", Runtime.version().feature() >= 21);
+        assertChatProtocol(ChatServer.Mode.VIRTUAL_THREADS);
+    }
+
+    @Test public void nioServerSpeaksTheChatProtocol() throws Exception {
+        assertChatProtocol(ChatServer.Mode.NIO);
+    }
+
+    @Test public void shutdownDisconnectsClients() throws Exception {
+        for (ChatServer.Mode mode : new ChatServer.Mode[] {ChatServer.Mode.THREAD_POOL, ChatServer.Mode.NIO}) {
+            int port = freePort();
+            ChatServer server = start(new ChatServerConfig(port).setMode(mode));
+            try (TestClient client = TestClient.connect(port)) {
+                assertEquals("SUBMITNAME", client.readLine());
+                assertTrue(server.shutdown(5, TimeUnit.SECONDS));
+                assertNull(mode + " server should close the connection", client.readLine());
+            }
+        }
+    }
+
+    @Test public void stopDrainsClientsWithAGoingDownMessage() throws Exception {
+        for (ChatServer.Mode mode : new ChatServer.Mode[] {ChatServer.Mode.THREAD_POOL, ChatServer.Mode.NIO}) {
+            int port = freePort();
+            ChatServer server = new ChatServer(new ChatServerConfig(port).setMode(mode));
+            assertTrue(server.start());
+            TestClient alice = TestClient.login(port, "alice");
+            try {
+                alice.send("still there?");
+                assertEquals("MESSAGE alice: still there?", alice.readLine());
+
+                // Like a real client, leave on seeing the end of the stream.
+                List<String> lines = new ArrayList<>();
+                Thread reader = new Thread(() -> {
+                    try {
+                        String line;
+                        while ((line = alice.readLine()) != null) {
+                            lines.add(line);
+                        }
+                        alice.close();
+                    } catch (IOException e) {
+                    }
+                });
+                reader.start();
+                assertTrue(mode + " server should drain its clients", server.stop(5, TimeUnit.SECONDS));
+                reader.join();
+                assertEquals(Collections.singletonList("MESSAGE " + ChatServer.GOING_DOWN), lines);
+                assertTrue(server.awaitTermination(1, TimeUnit.SECONDS));
+                assertEquals(0, server.getConnectionCount());
+            } finally {
+                alice.close();
+            }
+        }
+    }
+
+    @Test public void clientsOverTheConnectionLimitAreTurnedAway() throws Exception {
+        for (ChatServer.Mode mode : new ChatServer.Mode[] {ChatServer.Mode.THREAD_POOL, ChatServer.Mode.NIO}) {
+            int port = freePort();
+            ChatServer server = start(new ChatServerConfig(port).setMode(mode).setMaxConnections(1));
+            try (TestClient first = TestClient.connect(port)) {
+                assertEquals("SUBMITNAME", first.readLine());
+                try (TestClient second = TestClient.connect(port)) {
+                    assertEquals("MESSAGE " + ChatServer.SERVER_FULL, second.readLine());
+                    assertNull(mode + " server should close the connection", second.readLine());
+                }
+            } finally {
+                server.shutdown(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Test public void linesOverTheRateLimitAreDropped() throws Exception {
+        int port = freePort();
+        ChatServer server = start(new ChatServerConfig(port).setMaxMessagesPerSecond(5));
+        try (TestClient alice = TestClient.login(port, "alice")) {
+            for (int i = 0; i < 20; i++) {
+                alice.send("flood " + i);
+            }
+            // The name took one of the five lines allowed in a burst.
+            for (int i = 0; i < 4; i++) {
+                assertEquals("MESSAGE alice: flood " + i, alice.readLine());
+            }
+            assertEquals("MESSAGE " + ChatServer.SLOW_DOWN, alice.readLine());
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void silentClientsArePingedAndThenDisconnected() throws Exception {
+        for (ChatServer.Mode mode : new ChatServer.Mode[] {ChatServer.Mode.THREAD_POOL, ChatServer.Mode.NIO}) {
+            int port = freePort();
+            ChatServer server = start(new ChatServerConfig(port).setMode(mode).setIdleTimeoutSeconds(1));
+            try (TestClient alive = TestClient.login(port, "alive");
+                 TestClient silent = TestClient.login(port, "silent")) {
+                BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+                Thread answering = new Thread(() -> {
+                    try {
+                        String line;
+                        while ((line = alive.readLine()) != null) {
+                            if (line.equals(Frame.PING)) {
+                                alive.send(Frame.PONG);
+                            } else {
+                                lines.add(line);
+                            }
+                        }
+                    } catch (IOException e) {
+                    }
+                });
+                answering.setDaemon(true);
+                answering.start();
+                assertEquals("MESSAGE silent has joined", lines.poll(5, TimeUnit.SECONDS));
+
+                assertEquals(Frame.PING, silent.readLine());
+                assertNull(mode + " server should drop the silent client", silent.readLine());
+                assertEquals("MESSAGE silent has left", lines.poll(5, TimeUnit.SECONDS));
+                assertEquals(1, server.getSessionCount());
+            } finally {
+                server.shutdown(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Test public void anNioLoopKeepsServingWhenAClientDropsWithFramesPending() throws Exception {
+        int port = freePort();
+        ChatServer server = start(new ChatServerConfig(port).setMode(ChatServer.Mode.NIO).setIoThreads(1));
+        try (TestClient bob = TestClient.login(port, "bob")) {
+            for (int round = 0; round < 20; round++) {
+                TestClient eve = TestClient.login(port, "eve" + round);
+                readUntil(bob, "MESSAGE eve" + round + " has joined");
+                // Frames for both are pending when eve's reset hits a write.
+                for (int i = 0; i < 100; i++) {
+                    bob.send("flood " + i);
+                }
+                eve.reset();
+                readUntil(bob, "MESSAGE eve" + round + " has left");
+            }
+            try (TestClient carol = TestClient.login(port, "carol")) {
+                carol.send("still there?");
+                readUntil(bob, "MESSAGE carol: still there?");
+            }
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void pongIsAnOrdinaryLineWithoutAnIdleTimeout() throws Exception {
+        int port = freePort();
+        ChatServer server = start(new ChatServerConfig(port));
+        try (TestClient pong = TestClient.login(port, Frame.PONG)) {
+            pong.send(Frame.PONG);
+            assertEquals("MESSAGE PONG: PONG", pong.readLine());
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void tlsClientsTalkAndResumeTheirSessions() throws Exception {
+        File keystore = new File(folder.newFolder(), "chat.p12");
+        char[] password = "changeit".toCharArray();
+        TestTls.createKeystore(keystore, password);
+        int port = freePort();
+        ChatServer server = new ChatServer(new ChatServerConfig(port)
+                .setTlsKeystore(keystore).setTlsPassword(new String(password)));
+        assertTrue(server.start());
+        SSLContext context = TestTls.clientContext(keystore, password);
+        try (TestClient alice = new TestClient(context.getSocketFactory().createSocket("localhost", port))) {
+            assertEquals("SUBMITNAME", alice.readLine());
+            alice.send("alice");
+            assertEquals("NAMEACCEPTED alice", alice.readLine());
+            alice.send("secret");
+            assertEquals("MESSAGE alice: secret", alice.readLine());
+
+            SSLSession first = ((SSLSocket) alice.socket).getSession();
+            try (TestClient again = new TestClient(context.getSocketFactory().createSocket("localhost", port))) {
+                assertEquals("SUBMITNAME", again.readLine());
+                SSLSession second = ((SSLSocket) again.socket).getSession();
+                assertEquals("the second connection resumes the session", first.getCreationTime(), second.getCreationTime());
+            }
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tlsIsRefusedInNioMode() {
+        new ChatServer(new ChatServerConfig(0).setMode(ChatServer.Mode.NIO).setTlsKeystore(new File("chat.p12")));
+    }
+
+    @Test public void serversInOneJvmDoNotShareClients() throws Exception {
+        int firstPort = freePort();
+        int secondPort = freePort();
+        ChatServer first = start(new ChatServerConfig(firstPort));
+        ChatServer second = start(new ChatServerConfig(secondPort));
+        try (TestClient one = TestClient.connect(firstPort);
+             TestClient other = TestClient.connect(secondPort)) {
+            assertEquals("SUBMITNAME", one.readLine());
+            one.send("alice");
+            assertEquals("NAMEACCEPTED alice", one.readLine());
+
+            assertEquals("SUBMITNAME", other.readLine());
+            other.send("alice");
+            assertEquals("NAMEACCEPTED alice", other.readLine());
+            assertEquals(1, first.getSessionCount());
+            assertEquals(1, second.getSessionCount());
+        } finally {
+            first.shutdown(5, TimeUnit.SECONDS);
+            second.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void messagesOnlyReachTheSendersRoom() throws Exception {
+        int port = freePort();
+        ChatServer server = start(new ChatServerConfig(port));
+        try (TestClient alice = TestClient.login(port, "alice");
+             TestClient bob = TestClient.login(port, "bob");
+             TestClient carol = TestClient.login(port, "carol")) {
+            assertEquals("MESSAGE bob has joined", alice.readLine());
+            assertEquals("MESSAGE carol has joined", alice.readLine());
+            assertEquals("MESSAGE carol has joined", bob.readLine());
+
+            alice.send("/join team");
+            assertEquals("MESSAGE You are now in #team", alice.readLine());
+            assertEquals("MESSAGE alice has left #lobby", bob.readLine());
+            assertEquals("MESSAGE alice has left #lobby", carol.readLine());
+            bob.send("/join #team");
+            assertEquals("MESSAGE You are now in #team", bob.readLine());
+            assertEquals("MESSAGE bob has joined #team", alice.readLine());
+            assertEquals("MESSAGE bob has left #lobby", carol.readLine());
+            assertEquals(2, server.getRoomCount());
+
+            bob.send("psst");
+            assertEquals("MESSAGE bob: psst", alice.readLine());
+            assertEquals("MESSAGE bob: psst", bob.readLine());
+            carol.send("anyone?");
+            assertEquals("MESSAGE carol: anyone?", carol.readLine());
+
+            alice.send("/leave");
+            assertEquals("MESSAGE alice has left #team", bob.readLine());
+            assertEquals("MESSAGE alice has joined #lobby", carol.readLine());
+            assertEquals("MESSAGE You are now in #lobby", alice.readLine());
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void privateMessagesOnlyReachTheirRecipient() throws Exception {
+        int port = freePort();
+        ChatServer server = start(new ChatServerConfig(port));
+        try (TestClient alice = TestClient.login(port, "alice");
+             TestClient bob = TestClient.login(port, "bob");
+             TestClient carol = TestClient.login(port, "carol")) {
+            assertEquals("MESSAGE bob has joined", alice.readLine());
+            assertEquals("MESSAGE carol has joined", alice.readLine());
+            assertEquals("MESSAGE carol has joined", bob.readLine());
+            carol.send("/join team");
+            assertEquals("MESSAGE You are now in #team", carol.readLine());
+            assertEquals("MESSAGE carol has left #lobby", alice.readLine());
+            assertEquals("MESSAGE carol has left #lobby", bob.readLine());
+
+            alice.send("/msg carol  see you in a minute");
+            assertEquals("MESSAGE alice (private): see you in a minute", carol.readLine());
+            assertEquals("MESSAGE to carol (private): see you in a minute", alice.readLine());
+            alice.send("/msg dave hello?");
+            assertEquals("MESSAGE Nobody called dave is on this server", alice.readLine());
+            alice.send("/msg bob");
+            assertEquals("MESSAGE Use /msg <name> <text> to send a private message", alice.readLine());
+
+            // Bob got none of it.
+            bob.send("hi");
+            assertEquals("MESSAGE bob: hi", bob.readLine());
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void commandsIgnoreCaseAndUnknownOnesAreRefused() throws Exception {
+        int port = freePort();
+        ChatServer server = start(new ChatServerConfig(port));
+        try (TestClient alice = TestClient.login(port, "alice");
+             TestClient bob = TestClient.login(port, "bob")) {
+            assertEquals("MESSAGE bob has joined", alice.readLine());
+            alice.send("/WHO");
+            assertEquals("MESSAGE In #lobby: alice bob", alice.readLine());
+            alice.send("/frobnicate now");
+            assertEquals("MESSAGE Unknown command /frobnicate, try /help", alice.readLine());
+            alice.send("/help");
+            assertEquals("MESSAGE /join <room>: move to a room, creating it if needed", alice.readLine());
+            alice.send("/Join  team ");
+            // The rest of /help comes first.
+            String line;
+            while ((line = alice.readLine()).startsWith("MESSAGE /")) {
+            }
+            assertEquals("MESSAGE You are now in #team", line);
+            assertEquals("MESSAGE alice has left #lobby", bob.readLine());
+            alice.send("/quit");
+            assertNull(alice.readLine());
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void clientsFollowingPresenceGetRostersInsteadOfJoinMessages() throws Exception {
+        int port = freePort();
+        ChatServer server = start(new ChatServerConfig(port).setPresenceWindowMillis(1000));
+        try (TestClient alice = TestClient.login(port, "alice")) {
+            alice.send("/presence");
+            assertEquals("ROSTER #lobby alice", alice.readLine());
+            try (TestClient bob = TestClient.login(port, "bob");
+                 TestClient carol = TestClient.login(port, "carol")) {
+                assertEquals("MESSAGE carol has joined", bob.readLine());
+                // Alice's own entry may still be in the same window.
+                String delta = alice.readLine();
+                assertTrue(delta, delta.matches("PRESENCE #lobby (\\+alice )?\\+bob \\+carol"));
+
+                bob.send("/join team");
+                assertEquals("MESSAGE You are now in #team", bob.readLine());
+                assertEquals("MESSAGE bob has left #lobby", carol.readLine());
+                assertEquals("PRESENCE #lobby -bob", alice.readLine());
+                alice.send("/who");
+                assertEquals("ROSTER #lobby alice carol", alice.readLine());
+            }
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void latecomersGetTheRoomsHistory() throws Exception {
+        int port = freePort();
+        ChatServer server = start(new ChatServerConfig(port).setHistoryDepth(2));
+        try (TestClient alice = TestClient.login(port, "alice")) {
+            for (String text : new String[] {"one", "two", "three"}) {
+                alice.send(text);
+                assertEquals("MESSAGE alice: " + text, alice.readLine());
+            }
+            try (TestClient bob = TestClient.login(port, "bob")) {
+                assertEquals("MESSAGE alice: two", bob.readLine());
+                assertEquals("MESSAGE alice: three", bob.readLine());
+                assertEquals("MESSAGE bob has joined", alice.readLine());
+
+                bob.send("/join quiet");
+                assertEquals("MESSAGE You are now in #quiet", bob.readLine());
+                bob.send("/leave");
+                assertEquals("MESSAGE You are now in #lobby", bob.readLine());
+                assertEquals("MESSAGE alice: two", bob.readLine());
+                assertEquals("MESSAGE alice: three", bob.readLine());
+            }
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void theLobbysHistorySurvivesARestart() throws Exception {
+        int port = freePort();
+        ChatServerConfig config = new ChatServerConfig(port).setHistoryDepth(2).setLogDirectory(folder.newFolder());
+        ChatServer server = start(config);
+        try (TestClient alice = TestClient.login(port, "alice")) {
+            for (String text : new String[] {"one", "two", "three"}) {
+                alice.send(text);
+                assertEquals("MESSAGE alice: " + text, alice.readLine());
+            }
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+
+        server = start(config);
+        try (TestClient bob = TestClient.login(port, "bob")) {
+            assertEquals("MESSAGE alice: two", bob.readLine());
+            assertEquals("MESSAGE alice: three", bob.readLine());
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void aFlushDelayBatchesABurstIntoFewWrites() throws Exception {
+        int port = freePort();
+        ChatServer server = start(new ChatServerConfig(port).setFlushDelayMicros(50_000));
+        try (TestClient alice = TestClient.login(port, "alice")) {
+            long writesBefore = server.getSocketWriteCount();
+            for (int i = 0; i < 100; i++) {
+                alice.send("burst " + i);
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals("MESSAGE alice: burst " + i, alice.readLine());
+            }
+            long writes = server.getSocketWriteCount() - writesBefore;
+            assertTrue("100 messages took " + writes + " writes", writes < 20);
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void metricsAreServedOverHttp() throws Exception {
+        int port = freePort();
+        int metricsPort = freePort();
+        ChatServer server = start(new ChatServerConfig(port).setMetricsPort(metricsPort));
+        try (TestClient alice = TestClient.login(port, "alice")) {
+            alice.send("hello");
+            assertEquals("MESSAGE alice: hello", alice.readLine());
+
+            HttpURLConnection http = (HttpURLConnection) new URL("http://localhost:" + metricsPort + "/metrics").openConnection();
+            assertEquals(200, http.getResponseCode());
+            String metrics;
+            try (InputStream in = http.getInputStream()) {
+                metrics = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            assertTrue(metrics, metrics.contains("\nchat_connections_accepted_total 1\n"));
+            assertTrue(metrics, metrics.contains("\nchat_messages_received_total 2\n"));
+            assertTrue(metrics, metrics.contains("\nchat_sessions 1\n"));
+            assertTrue(metrics, metrics.contains("\nchat_broadcast_duration_seconds_count 2\n"));
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test public void clusteredServersShareNamesAndRooms() throws Exception {
+        int[] ports = {freePort(), freePort(), freePort()};
+        int[] clusterPorts = {freePort(), freePort(), freePort()};
+        ChatServer[] nodes = new ChatServer[ports.length];
+        for (int i = 0; i < nodes.length; i++) {
+            List<InetSocketAddress> peers = new ArrayList<>();
+            for (int j = 0; j < nodes.length; j++) {
+                if (j != i) {
+                    peers.add(InetSocketAddress.createUnresolved("localhost", clusterPorts[j]));
+                }
+            }
+            nodes[i] = start(new ChatServerConfig(ports[i]).setClusterPort(clusterPorts[i]).setPeers(peers));
+        }
+        try {
+            for (ChatServer node : nodes) {
+                awaitPeers(node, nodes.length - 1);
+            }
+            try (TestClient alice = TestClient.login(ports[0], "alice");
+                 TestClient bob = TestClient.connect(ports[1]);
+                 TestClient carol = TestClient.login(ports[2], "carol")) {
+                assertEquals("MESSAGE carol has joined", alice.readLine());
+
+                assertEquals("SUBMITNAME", bob.readLine());
+                bob.send("alice");
+                assertEquals("names are unique across the cluster", "SUBMITNAME", bob.readLine());
+                bob.send("bob");
+                assertEquals("NAMEACCEPTED bob", bob.readLine());
+                assertEquals("MESSAGE bob has joined", alice.readLine());
+                assertEquals("MESSAGE bob has joined", carol.readLine());
+
+                bob.send("hi all");
+                assertEquals("MESSAGE bob: hi all", alice.readLine());
+                assertEquals("MESSAGE bob: hi all", bob.readLine());
+                assertEquals("MESSAGE bob: hi all", carol.readLine());
+
+                // Relayed text is escaped on the way, and only unescaped once.
+                bob.send("see C:\\new\\rules");
+                assertEquals("MESSAGE bob: see C:\\new\\rules", alice.readLine());
+                assertEquals("MESSAGE bob: see C:\\new\\rules", bob.readLine());
+                assertEquals("MESSAGE bob: see C:\\new\\rules", carol.readLine());
+
+                alice.send("/quit");
+                assertEquals("MESSAGE alice has left", bob.readLine());
+                assertEquals("MESSAGE alice has left", carol.readLine());
+            }
+        } finally {
+            for (ChatServer node : nodes) {
+                node.shutdown(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static void awaitPeers(ChatServer node, int peers) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (node.getClusterPeerCount() < peers) {
+            assertTrue("cluster did not form", System.nanoTime() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test public void binaryClientsTalkToTextClients() throws Exception {
+        for (ChatServer.Mode mode : new ChatServer.Mode[] {ChatServer.Mode.THREAD_POOL, ChatServer.Mode.NIO}) {
+            int port = freePort();
+            ChatServer server = start(new ChatServerConfig(port).setMode(mode));
+            try (TestClient text = TestClient.login(port, "alice");
+                 Socket socket = new Socket("localhost", port)) {
+                socket.setSoTimeout(5000);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                assertEquals("SUBMITNAME", new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).readLine());
+
+                out.writeByte(WireProtocol.PREAMBLE);
+                out.writeByte(WireProtocol.VERSION);
+                // Line breaks have no place in a name.
+                out.write(BinaryCodecTest.frame(BinaryCodec.TYPE_TEXT, "eve\nMESSAGE x"));
+                assertBinaryFrame(in, BinaryCodec.TYPE_SUBMITNAME, "");
+                out.write(BinaryCodecTest.frame(BinaryCodec.TYPE_TEXT, "alice"));
+                assertBinaryFrame(in, BinaryCodec.TYPE_SUBMITNAME, "");
+                out.write(BinaryCodecTest.frame(BinaryCodec.TYPE_TEXT, "bob"));
+                assertBinaryFrame(in, BinaryCodec.TYPE_NAMEACCEPTED, "bob");
+                assertEquals("MESSAGE bob has joined", text.readLine());
+
+                out.write(BinaryCodecTest.frame(BinaryCodec.TYPE_TEXT, "two\nlines"));
+                assertBinaryFrame(in, BinaryCodec.TYPE_MESSAGE, "bob: two\nlines");
+                assertEquals("MESSAGE bob: two lines", text.readLine());
+
+                // Line breaks cannot smuggle frames of their own to text clients.
+                out.write(BinaryCodecTest.frame(BinaryCodec.TYPE_TEXT, "hi\r\nMESSAGE alice: I am alice\nSUBMITNAME"));
+                assertBinaryFrame(in, BinaryCodec.TYPE_MESSAGE, "bob: hi\r\nMESSAGE alice: I am alice\nSUBMITNAME");
+                assertEquals("MESSAGE bob: hi  MESSAGE alice: I am alice SUBMITNAME", text.readLine());
+                text.send("hi bob");
+                assertEquals("MESSAGE alice: hi bob", text.readLine());
+                assertBinaryFrame(in, BinaryCodec.TYPE_MESSAGE, "alice: hi bob");
+
+            } finally {
+                server.shutdown(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static void assertBinaryFrame(DataInputStream in, byte type, String text) throws IOException {
+        int length = in.readInt();
+        assertEquals(type, in.readByte());
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        assertEquals(text, new String(payload, StandardCharsets.UTF_8));
+    }
+
+    private void assertChatProtocol(ChatServer.Mode mode) throws Exception {
+        int port = freePort();
+        ChatServer server = start(new ChatServerConfig(port).setMode(mode));
+
+        try (TestClient alice = TestClient.connect(port);
+             TestClient bob = TestClient.connect(port)) {
+            assertEquals("SUBMITNAME", alice.readLine());
+            alice.send("alice");
+            assertEquals("NAMEACCEPTED alice", alice.readLine());
+
+            assertEquals("SUBMITNAME", bob.readLine());
+            bob.send("alice");
+            assertEquals("duplicate names are refused", "SUBMITNAME", bob.readLine());
+            bob.send("bob");
+            assertEquals("NAMEACCEPTED bob", bob.readLine());
+            assertEquals("MESSAGE bob has joined", alice.readLine());
+
+            alice.send("hello");
+            assertEquals("MESSAGE alice: hello", alice.readLine());
+            assertEquals("MESSAGE alice: hello", bob.readLine());
+
+            bob.send("/quit");
+            assertEquals("MESSAGE bob has left", alice.readLine());
+        } finally {
+            server.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    static void readUntil(TestClient client, String expected) throws IOException {
+        String line;
+        do {
+            line = client.readLine();
+            assertNotNull("expected " + expected, line);
+        } while (!line.equals(expected));
+    }
+
+    static ChatServer start(ChatServerConfig config) {
+        ChatServer server = new ChatServer(config);
+        Thread t = new Thread(server, "Test Chat Server");
+        t.setDaemon(true);
+        t.start();
+        return server;
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * A minimal line based client used to drive the server from tests.
+     */
+    static class TestClient implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        private TestClient(Socket socket) throws IOException {
+            this.socket = socket;
+            this.socket.setSoTimeout(5000);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+        }
+
+        static TestClient connect(int port) throws Exception {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return new TestClient(new Socket("localhost", port));
+                } catch (IOException e) {
+                    if (attempt == 50) {
+                        throw e;
+                    }
+                    Thread.sleep(100);
+                }
+            }
+        }
+
+        /**
+         * Connects and completes the handshake with the given screen name.
+         */
+        static TestClient login(int port, String name) throws Exception {
+            TestClient client = connect(port);
+            assertEquals("SUBMITNAME", client.readLine());
+            client.send(name);
+            assertEquals("NAMEACCEPTED " + name, client.readLine());
+            return client;
+        }
+
+        String readLine() throws IOException {
+            return in.readLine();
+        }
+
+        void send(String line) {
+            out.println(line);
+        }
+
+        /**
+         * Drops the connection with a reset instead of an orderly close.
+         */
+        void reset() throws IOException {
+            socket.setSoLinger(true, 0);
+            socket.close();
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package basic_demo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ClientRegistryTest {
+
+    @Test public void namesAreClaimedOnce() {
+        ClientRegistry registry = new ClientRegistry();
+        ChatSession alice = new TestSession();
+        ChatSession impostor = new TestSession();
+
+        assertTrue(registry.claim("alice", alice));
+        assertFalse(registry.claim("alice", impostor));
+        assertFalse("only the owner can free a name", registry.release("alice", impostor));
+        assertSame(alice, registry.lookup("alice"));
+
+        assertTrue(registry.release("alice", alice));
+        assertNull(registry.lookup("alice"));
+        assertEquals(0, registry.sessions().length);
+    }
+
+    @Test public void snapshotsAreNotAffectedByLaterChanges() {
+        ClientRegistry registry = new ClientRegistry();
+        ChatSession alice = new TestSession();
+        ChatSession bob = new TestSession();
+        registry.claim("alice", alice);
+
+        ChatSession[] before = registry.sessions();
+        registry.claim("bob", bob);
+        registry.release("alice", alice);
+
+        assertArrayEquals(new ChatSession[] {alice}, before);
+        assertArrayEquals(new ChatSession[] {bob}, registry.sessions());
+    }
+
+    @Test public void concurrentClaimsOfOneNameHaveASingleWinner() throws Exception {
+        ClientRegistry registry = new ClientRegistry();
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger winners = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (registry.claim("popular", new TestSession())) {
+                    winners.incrementAndGet();
+                }
+                registry.claim(Thread.currentThread().getName(), new TestSession());
+            }, "client-" + i);
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(1, winners.get());
+        assertEquals(threads.length + 1, registry.size());
+    }
+
+    static class TestSession extends ChatSession {
+        TestSession() {
+            super(16, OverflowPolicy.DROP_OLDEST);
+        }
+
+        @Override
+        void close() {
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package basic_demo;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FanOutTest {
+
+    @Test public void bigRoomsAreSharedOutAndKeepTheOrderOfFrames() {
+        FanOut fanOut = new FanOut(4, 8);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        ChatSession[] members = new ChatSession[100];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new ClientRegistryTest.TestSession() {
+                @Override
+                void frameQueued() {
+                    threads.add(Thread.currentThread().getName());
+                }
+            };
+        }
+        Frame[] frames = new Frame[10];
+        try {
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = Frame.message("frame " + i);
+                fanOut.broadcast(members, frames[i], members[42]);
+            }
+        } finally {
+            fanOut.stop();
+        }
+
+        for (int i = 0; i < members.length; i++) {
+            if (i == 42) {
+                assertEquals(0, members[i].outbound().depth());
+                continue;
+            }
+            for (Frame frame : frames) {
+                assertSame(frame, members[i].outbound().poll());
+            }
+        }
+        assertEquals(4, threads.size());
+    }
+
+    @Test public void smallRoomsStayOnTheSendersThread() {
+        FanOut fanOut = new FanOut(4, 8);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        ChatSession[] members = new ChatSession[15];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new ClientRegistryTest.TestSession() {
+                @Override
+                void frameQueued() {
+                    threads.add(Thread.currentThread().getName());
+                }
+            };
+        }
+        try {
+            fanOut.broadcast(members, Frame.message("hi"), null);
+        } finally {
+            fanOut.stop();
+        }
+        assertEquals(Set.of(Thread.currentThread().getName()), threads);
+    }
+}
@@ -0,0 +1,37 @@
+package basic_demo;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test public void percentilesAreWithinThePrecisionOfTheBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        assertEquals(100_000, histogram.count());
+        assertEquals(100_000_000, histogram.max());
+        assertWithin(50_000_000, histogram.percentile(0.5));
+        assertWithin(99_000_000, histogram.percentile(0.99));
+        assertWithin(99_900_000, histogram.percentile(0.999));
+        assertEquals(100_000_000, histogram.percentile(1.0));
+    }
+
+    @Test public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(7);
+        histogram.record(40);
+
+        assertEquals(3, histogram.percentile(0.1));
+        assertEquals(7, histogram.percentile(0.5));
+        assertEquals(40, histogram.percentile(0.99));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " is not within 3% of " + expected,
+                actual >= expected && actual <= expected * 1.03);
+    }
+}
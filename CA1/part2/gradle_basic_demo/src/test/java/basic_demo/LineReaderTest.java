@@ -0,0 +1,47 @@
+package basic_demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LineReaderTest {
+
+    @Test public void splitsLinesAcrossReads() throws Exception {
+        // A tiny buffer and a stream returning a few bytes at a time put line ends everywhere.
+        LineReader reader = new LineReader(trickle("alice\r\nh\u00e9llo there\n\nlast", 3), 64, 4);
+        assertEquals("alice", reader.readLine());
+        assertEquals("h\u00e9llo there", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals("last", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test public void acceptsLinesUpToTheLimit() throws Exception {
+        LineReader reader = new LineReader(trickle("12345\r\n123456\n", 2), 5, 4);
+        assertEquals("12345", reader.readLine());
+        try {
+            reader.readLine();
+            fail("a line over the limit must be refused");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    private static InputStream trickle(String text, int chunk) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+
+            @Override
+            public int read(byte[] b) throws IOException {
+                return read(b, 0, b.length);
+            }
+        };
+    }
+}
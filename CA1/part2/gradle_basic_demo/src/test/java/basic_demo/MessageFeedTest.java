@@ -0,0 +1,51 @@
+package basic_demo;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageFeedTest {
+
+    @Test public void queuedLinesAreAppendedInOneBatch() throws Exception {
+        JTextArea area = new JTextArea();
+        MessageFeed feed = new MessageFeed(area, 100);
+        feed.add("alice: hi");
+        feed.add("bob: hello");
+        SwingUtilities.invokeAndWait(feed::flush);
+        assertEquals("alice: hi\nbob: hello\n", area.getText());
+    }
+
+    @Test public void onlyTheLastLinesAreKept() throws Exception {
+        JTextArea area = new JTextArea();
+        MessageFeed feed = new MessageFeed(area, 3);
+        feed.add("one");
+        feed.add("two");
+        SwingUtilities.invokeAndWait(feed::flush);
+        feed.add("three");
+        feed.add("four");
+        SwingUtilities.invokeAndWait(feed::flush);
+        assertEquals("two\nthree\nfour\n", area.getText());
+
+        // A burst bigger than the scrollback never reaches the text area whole.
+        for (int i = 0; i < 100; i++) {
+            feed.add("line " + i);
+        }
+        SwingUtilities.invokeAndWait(feed::flush);
+        assertEquals("line 97\nline 98\nline 99\n", area.getText());
+    }
+
+    @Test public void batchesArriveOnTheEventThreadByThemselves() throws Exception {
+        JTextArea area = new JTextArea();
+        MessageFeed feed = new MessageFeed(area, 100);
+        feed.add("alice: hi");
+        long deadline = System.currentTimeMillis() + 5000;
+        String[] text = new String[1];
+        do {
+            Thread.sleep(10);
+            SwingUtilities.invokeAndWait(() -> text[0] = area.getText());
+        } while (text[0].isEmpty() && System.currentTimeMillis() < deadline);
+        assertEquals("alice: hi\n", text[0]);
+    }
+}
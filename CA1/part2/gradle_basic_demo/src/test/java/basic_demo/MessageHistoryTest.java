@@ -0,0 +1,49 @@
+package basic_demo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageHistoryTest {
+
+    @Test public void keepsTheLastMessagesOldestFirst() {
+        MessageHistory history = new MessageHistory(3);
+        assertTrue(history.recent().isEmpty());
+
+        Frame a = Frame.message("a");
+        Frame b = Frame.message("b");
+        history.add(a);
+        history.add(b);
+        assertEquals(Arrays.asList(a, b), history.recent());
+
+        Frame c = Frame.message("c");
+        Frame d = Frame.message("d");
+        history.add(c);
+        history.add(d);
+        assertEquals("the oldest message is overwritten", Arrays.asList(b, c, d), history.recent());
+    }
+
+    @Test public void concurrentWritersNeverProduceATornOrReorderedHistory() throws Exception {
+        MessageHistory history = new MessageHistory(8);
+        Thread[] writers = new Thread[4];
+        for (int w = 0; w < writers.length; w++) {
+            writers[w] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    history.add(Frame.message(Integer.toString(i)));
+                }
+            });
+            writers[w].start();
+        }
+        while (writers[0].isAlive()) {
+            List<Frame> recent = history.recent();
+            assertTrue(recent.size() <= 8);
+            assertFalse(recent.contains(null));
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(8, history.recent().size());
+    }
+}
@@ -0,0 +1,106 @@
+package basic_demo;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class MessageLogTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test public void readsFromAnyOffsetAcrossSegments() throws Exception {
+        File directory = folder.newFolder();
+        try (MessageLog log = new MessageLog(directory, 1024, 1000)) {
+            log.open();
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, log.append("lobby", "alice: message " + i, MessageLog.KIND_CHAT));
+            }
+            assertTrue("small segments roll over", directory.listFiles((dir, name) -> name.endsWith(".log")).length > 1);
+
+            List<MessageLog.Entry> entries = log.read(42, 10);
+            assertEquals(10, entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                assertEquals(42 + i, entries.get(i).offset);
+                assertEquals("lobby", entries.get(i).room);
+                assertEquals("alice: message " + (42 + i), entries.get(i).text);
+                assertTrue(entries.get(i).isChat());
+            }
+            assertEquals(2, log.read(98, 10).size());
+            assertTrue(log.read(100, 10).isEmpty());
+
+            // Once flushed, full segments are closed and read through their files.
+            log.flush();
+            List<MessageLog.Entry> all = log.read(0, 200);
+            assertEquals(100, all.size());
+            for (int i = 0; i < all.size(); i++) {
+                assertEquals("alice: message " + i, all.get(i).text);
+            }
+        }
+    }
+
+    @Test public void onlyTheRetainedSegmentsAreKept() throws Exception {
+        File directory = folder.newFolder();
+        try (MessageLog log = new MessageLog(directory, 1024, 1000, 2)) {
+            log.open();
+            for (int i = 0; i < 100; i++) {
+                log.append("lobby", "alice: message " + i, MessageLog.KIND_CHAT);
+            }
+            log.flush();
+            assertEquals(2, directory.listFiles((dir, name) -> name.endsWith(".log")).length);
+            assertEquals(2, directory.listFiles((dir, name) -> name.endsWith(".idx")).length);
+
+            List<MessageLog.Entry> kept = log.read(0, 200);
+            assertFalse(kept.isEmpty());
+            assertTrue("the oldest messages are gone", kept.get(0).offset > 0);
+            assertEquals(99, kept.get(kept.size() - 1).offset);
+            assertEquals(100, log.nextOffset());
+        }
+    }
+
+    @Test public void rollingOverTakesTheSpareSegmentTheFlusherPrepared() throws Exception {
+        File directory = folder.newFolder();
+        try (MessageLog log = new MessageLog(directory, 1024, 1000)) {
+            log.open();
+            File spare = new File(directory, "spare.log.tmp");
+            assertTrue("a spare is ready from the start", spare.isFile());
+            long offset = 0;
+            while (directory.listFiles((dir, name) -> name.endsWith(".log")).length == 1) {
+                offset = log.append("lobby", "alice: message " + log.nextOffset(), MessageLog.KIND_CHAT);
+            }
+            assertFalse("the spare took the appends", spare.exists());
+            assertTrue(new File(directory, String.format("%020d.log", offset)).isFile());
+            assertTrue(new File(directory, String.format("%020d.idx", offset)).isFile());
+
+            log.flush();
+            assertTrue("the flusher made a new spare", spare.isFile());
+            assertEquals("alice: message " + offset, log.read(offset, 1).get(0).text);
+        }
+        assertFalse("closing removes the spare", new File(directory, "spare.log.tmp").exists());
+    }
+
+    @Test public void recoversWhereItLeftOffAfterReopening() throws Exception {
+        File directory = folder.newFolder();
+        try (MessageLog log = new MessageLog(directory, 1024, 1000)) {
+            log.open();
+            for (int i = 0; i < 50; i++) {
+                log.append("lobby", "message " + i, MessageLog.KIND_CHAT);
+            }
+            log.append("lobby", "bob has joined", MessageLog.KIND_ANNOUNCEMENT);
+        }
+        try (MessageLog log = new MessageLog(directory, 1024, 1000)) {
+            log.open();
+            assertEquals(51, log.nextOffset());
+            MessageLog.Entry last = log.read(50, 1).get(0);
+            assertEquals("bob has joined", last.text);
+            assertFalse(last.isChat());
+
+            assertEquals(51, log.append("quiet", "caf\u00e9", MessageLog.KIND_CHAT));
+            assertEquals("caf\u00e9", log.read(51, 1).get(0).text);
+            assertEquals("quiet", log.read(51, 1).get(0).room);
+        }
+    }
+}
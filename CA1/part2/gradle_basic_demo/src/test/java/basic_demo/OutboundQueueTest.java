@@ -0,0 +1,86 @@
+package basic_demo;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    private final Frame a = Frame.message("a");
+    private final Frame b = Frame.message("b");
+    private final Frame c = Frame.message("c");
+
+    @Test public void dropOldestKeepsTheNewestLines() throws Exception {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_OLDEST, () -> fail("must not disconnect"));
+        assertTrue(queue.offer(a));
+        assertTrue(queue.offer(b));
+        assertTrue(queue.offer(c));
+
+        assertEquals(1, queue.droppedCount());
+        assertEquals(2, queue.highWaterMark());
+        assertSame(b, queue.take());
+        assertSame(c, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test public void disconnectPolicyGivesUpOnTheClient() {
+        AtomicBoolean disconnected = new AtomicBoolean();
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.DISCONNECT, () -> disconnected.set(true));
+        assertTrue(queue.offer(a));
+        assertFalse(queue.offer(b));
+
+        assertTrue(disconnected.get());
+        assertEquals(1, queue.droppedCount());
+    }
+
+    @Test public void finishQueuesALastFrameBeforeTheEnd() throws Exception {
+        OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.BLOCK, () -> fail("must not disconnect"));
+        assertTrue(queue.offer(a));
+        assertTrue(queue.finish(b));
+
+        assertFalse(queue.offer(c));
+        assertSame(a, queue.take());
+        assertSame(b, queue.take());
+        assertNull(queue.take());
+    }
+
+    @Test public void finishFailsOnAFullQueueWithoutWaiting() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.BLOCK, () -> fail("must not disconnect"));
+        assertTrue(queue.offer(a));
+        assertTrue(queue.offer(b));
+
+        assertFalse(queue.finish(c));
+        assertTrue(queue.isClosed());
+    }
+
+    @Test public void aSessionWhoseQueueIsFullIsClosedInsteadOfFinished() {
+        AtomicBoolean closed = new AtomicBoolean();
+        ChatSession session = new ChatSession(1, OverflowPolicy.BLOCK) {
+            @Override
+            void close() {
+                closed.set(true);
+            }
+        };
+        session.deliver(a);
+        session.finish(b);
+
+        assertTrue("nobody would ever end the stream", closed.get());
+    }
+
+    @Test public void closeReleasesTheWriterAndBlockedSenders() throws Exception {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK, () -> fail("must not disconnect"));
+        assertTrue(queue.offer(a));
+
+        Thread sender = new Thread(() -> assertFalse(queue.offer(b)));
+        sender.start();
+        Thread.sleep(50);
+        queue.close();
+        sender.join(5000);
+
+        assertFalse(sender.isAlive());
+        assertNull(queue.take());
+        assertFalse(queue.offer(c));
+        assertEquals(0, queue.depth());
+    }
+}
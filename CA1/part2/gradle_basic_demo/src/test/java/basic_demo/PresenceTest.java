@@ -0,0 +1,58 @@
+package basic_demo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PresenceTest {
+
+    @Test public void changesWithinAWindowAreSentTogether() throws Exception {
+        Presence presence = new Presence(50);
+        ChatRoom room = new ChatRoom("lobby", 1);
+        ChatSession follower = member(room, "alice", true);
+        ChatSession reader = member(room, "bob", false);
+        try {
+            presence.changed(room, "carol", true);
+            presence.changed(room, "dave", true);
+            presence.changed(room, "carol", false);
+            Frame frame = follower.outbound().poll(5, TimeUnit.SECONDS);
+            assertEquals("PRESENCE #lobby +dave -carol", frame.toString());
+            assertEquals("PRESENCE", frame.command());
+
+            presence.changed(room, "erin", true);
+            assertEquals("PRESENCE #lobby +erin", follower.outbound().poll(5, TimeUnit.SECONDS).toString());
+            assertEquals(0, reader.outbound().depth());
+        } finally {
+            presence.stop();
+        }
+    }
+
+    @Test public void withoutAWindowEveryChangeIsSentRightAway() {
+        Presence presence = new Presence(0);
+        ChatRoom room = new ChatRoom("lobby", 1);
+        ChatSession follower = member(room, "alice", true);
+        presence.changed(room, "bob", true);
+        presence.changed(room, "bob", false);
+        assertEquals("PRESENCE #lobby +bob", follower.outbound().poll().toString());
+        assertEquals("PRESENCE #lobby -bob", follower.outbound().poll().toString());
+    }
+
+    @Test public void followersSkipJoinAndLeaveMessages() {
+        ChatRoom room = new ChatRoom("lobby", 1);
+        ChatSession follower = member(room, "alice", true);
+        assertTrue(follower.deliver(Frame.presenceMessage("bob has joined")));
+        assertTrue(follower.deliver(Frame.message("bob: hi")));
+        assertEquals("MESSAGE bob: hi", follower.outbound().poll().toString());
+        assertNull(follower.outbound().poll());
+        assertEquals("ROSTER #lobby alice", Presence.roster(room).toString());
+    }
+
+    private static ChatSession member(ChatRoom room, String name, boolean followsPresence) {
+        ChatSession session = new ClientRegistryTest.TestSession();
+        session.setName(name);
+        session.setFollowsPresence(followsPresence);
+        room.add(session);
+        return session;
+    }
+}
@@ -0,0 +1,47 @@
+package basic_demo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ServerMetricsTest {
+
+    @Test public void broadcastsAreCountedInCumulativeBuckets() {
+        ServerMetrics metrics = new ServerMetrics();
+        metrics.broadcastCompleted(TimeUnit.MICROSECONDS.toNanos(10));
+        metrics.broadcastCompleted(TimeUnit.MICROSECONDS.toNanos(11));
+        metrics.broadcastCompleted(TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.broadcastCompleted(TimeUnit.SECONDS.toNanos(3));
+
+        long[] snapshot = metrics.broadcastNanos();
+        assertEquals(ServerMetrics.BROADCAST_BUCKETS.length + 2, snapshot.length);
+        assertEquals(4, snapshot[0]);
+        assertEquals(3_002_021_000L, snapshot[1]);
+        assertEquals("a limit is inclusive", 1, snapshot[2]);
+        assertEquals(2, snapshot[3]);
+        assertEquals(2, snapshot[5]);
+        assertEquals(3, snapshot[7]);
+        assertEquals("over every limit", 3, snapshot[snapshot.length - 1]);
+    }
+
+    @Test public void broadcastsOnManyThreadsAreAllCounted() throws Exception {
+        ServerMetrics metrics = new ServerMetrics();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    metrics.broadcastCompleted(i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long[] snapshot = metrics.broadcastNanos();
+        assertEquals(40_000, snapshot[0]);
+        assertEquals(4 * (9_999L * 10_000 / 2), snapshot[1]);
+        assertEquals(40_000, snapshot[2]);
+    }
+}
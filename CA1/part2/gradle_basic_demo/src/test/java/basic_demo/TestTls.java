@@ -0,0 +1,61 @@
+package basic_demo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * The client side of TLS for the tests and the benchmarks, which also use it
+ * through the jmh source set: a self-signed keystore to start a server with,
+ * and a client context that trusts it.
+ */
+final class TestTls {
+
+    private TestTls() {
+    }
+
+    /**
+     * Creates a keystore with a self-signed certificate for localhost, using
+     * the JDK's keytool.
+     */
+    static void createKeystore(File keystore, char[] password) throws IOException, InterruptedException {
+        File keytool = new File(System.getProperty("java.home"), "bin/keytool");
+        Process process = new ProcessBuilder(keytool.getPath(), "-genkeypair",
+                "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "30",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", keystore.getPath(),
+                "-storepass", new String(password))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool could not create " + keystore);
+        }
+    }
+
+    /**
+     * Creates a client context that trusts the certificates in a keystore,
+     * with a session cache of its own.
+     */
+    static SSLContext clientContext(File truststore, char[] password) throws IOException {
+        try {
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            try (InputStream in = new FileInputStream(truststore)) {
+                store.load(in, password);
+            }
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(store);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use trust store " + truststore + ": " + e.getMessage(), e);
+        }
+    }
+}
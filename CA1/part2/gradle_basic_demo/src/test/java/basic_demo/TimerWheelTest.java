@@ -0,0 +1,44 @@
+package basic_demo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    @Test public void handsOutItemsOnceTheirDeadlineHasPassed() {
+        TimerWheel<String> wheel = new TimerWheel<>(8, 10, 0);
+        wheel.schedule("a", 25);
+        wheel.schedule("b", 30);
+        wheel.schedule("far", 500);
+        List<String> due = new ArrayList<>();
+
+        wheel.advance(20, due::add);
+        assertEquals("nothing is handed out early", Collections.emptyList(), due);
+        wheel.advance(30, due::add);
+        assertEquals(Arrays.asList("a", "b"), due);
+
+        due.clear();
+        wheel.advance(490, due::add);
+        assertEquals("deadlines beyond one turn wait for theirs", Collections.emptyList(), due);
+        wheel.advance(10_000, due::add);
+        assertEquals(Collections.singletonList("far"), due);
+    }
+
+    @Test public void itemsCanBeScheduledAgainWhileBeingHandedOut() {
+        TimerWheel<String> wheel = new TimerWheel<>(4, 10, 0);
+        wheel.schedule("a", 10);
+        List<String> due = new ArrayList<>();
+        wheel.advance(10, item -> {
+            due.add(item);
+            wheel.schedule(item, 5);
+        });
+        assertEquals(Collections.singletonList("a"), due);
+        wheel.advance(20, due::add);
+        assertEquals("a deadline in the past is due on the next tick", Arrays.asList("a", "a"), due);
+    }
+}
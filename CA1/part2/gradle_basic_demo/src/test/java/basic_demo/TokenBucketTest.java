@@ -0,0 +1,43 @@
+package basic_demo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test public void allowsABurstAndThenTheSustainedRate() {
+        TokenBucket bucket = new TokenBucket(10, 5, 0);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryTake(1, 0));
+        }
+        assertFalse("the burst is used up", bucket.tryTake(1, 0));
+        assertFalse(bucket.tryTake(1, SECOND / 20));
+        assertTrue("a token every 100 ms", bucket.tryTake(1, SECOND / 10));
+        assertFalse(bucket.tryTake(1, SECOND / 10));
+
+        assertTrue(bucket.tryTake(5, 10 * SECOND));
+        assertFalse("idle time saves up no more than the burst", bucket.tryTake(1, 10 * SECOND));
+    }
+
+    @Test public void aLineRefusedForItsBytesKeepsItsMessageToken() {
+        ChatSession session = new ClientRegistryTest.TestSession();
+        long now = System.nanoTime();
+        session.limitRate(new TokenBucket(1, 2, now), new TokenBucket(1, 10, now));
+        assertTrue(session.admit(8));
+        assertFalse("only 2 bytes left", session.admit(8));
+        assertTrue("the refused line took no message token", session.admit(1));
+        assertFalse("both message tokens are used", session.admit(1));
+    }
+
+    @Test public void workBiggerThanTheBucketGoesThroughWhenFullAndLeavesADebt() {
+        TokenBucket bucket = new TokenBucket(100, 100, 0);
+        assertTrue(bucket.tryTake(300, 0));
+        assertFalse(bucket.tryTake(1, SECOND));
+        assertFalse(bucket.tryTake(300, 2 * SECOND));
+        assertTrue("paid off and full again", bucket.tryTake(300, 3 * SECOND));
+    }
+}